@@ -3,20 +3,40 @@ package net;
 import cli.ConsoleInterface;
 import cli.InvalidCommandLineArgumentException;
 import cli.UnknownCommandException;
+import collection.Area;
 import collection.CollectionElement;
+import collection.Cursor;
+import collection.Delta;
+import collection.ElementFilter;
+import collection.NearestRequest;
+import collection.Page;
+import collection.PageRequest;
+import collection.Position;
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import utils.Utils;
 
 import java.io.*;
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.nio.file.Files;
-import java.nio.file.InvalidPathException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.function.Consumer;
 
 public class Client implements Runnable, Closeable {
@@ -33,18 +53,31 @@ public class Client implements Runnable, Closeable {
         }
     }
 
+    private static final int RESPONSE_TIMEOUT = 10_000;
+    private static final int MAX_IN_FLIGHT = 64;
+    private static final int PAGE_SIZE = 100;
+    private static final int NEAREST_COUNT = 10;
+    // Import batches are kept well below the datagram size, a few of them are in flight at once
+    private static final int IMPORT_BATCH = 500;
+    private static final int IMPORT_BATCH_BYTES = 32 << 10;
+    private static final int IMPORT_WINDOW = 8;
+    private static final int IMPORT_ATTEMPTS = 6;
+
     private boolean shouldRun = true;
     private MessageProcessor messageProcessor = new MessageProcessor();
     private Gson gson = new Gson();
     private DatagramSocket socket;
     private InetAddress address;
+    private ResponseDispatcher dispatcher;
 
     private int port;
 
-    private boolean loggedIn = false;
+    private volatile boolean loggedIn = false;
     private String login = "";
     private String password = "";
     private String hashPassword = "";
+    private volatile String sessionToken = null;
+    private final Replica replica = new Replica();
 
     public Client(String[] args) throws IOException, InvalidCommandLineArgumentException {
         if (args.length < 2) {
@@ -64,13 +97,40 @@ public class Client implements Runnable, Closeable {
         }
 
         socket = new DatagramSocket();
-        socket.setSoTimeout(10_000);
+        dispatcher = new ResponseDispatcher(socket, address, port, MAX_IN_FLIGHT, RESPONSE_TIMEOUT);
 
         messageProcessor.setResponseProcessor(PacketMessage.Head.INFO, msg -> System.out.println(msg.getBody()));
         messageProcessor.setResponseProcessor(PacketMessage.Head.SHOW, msg -> {
             if (msg.getBody() instanceof List) {
                 List list = (List) msg.getBody();
                 list.forEach(System.out::println);
+            } else if (msg.getBody() instanceof Page) {
+                ((Page) msg.getBody()).getElements().forEach(System.out::println);
+            }
+        });
+
+        for (PacketMessage.Head head : new PacketMessage.Head[]{PacketMessage.Head.WITHIN,
+                PacketMessage.Head.NEAREST, PacketMessage.Head.FILTER}) {
+            messageProcessor.setResponseProcessor(head, msg -> {
+                if (msg.getBody() instanceof List) {
+                    ((List<?>) msg.getBody()).forEach(System.out::println);
+                } else {
+                    System.out.println("Server could not execute " + msg.getHead());
+                }
+            });
+        }
+
+        messageProcessor.setResponseProcessor(PacketMessage.Head.CHANGES, msg -> {
+            if (msg.getBody() instanceof Delta) {
+                Delta delta = (Delta) msg.getBody();
+                if (!delta.isSnapshot()) {
+                    delta.getAdded().forEach(element -> System.out.println("+ " + element));
+                    for (long id : delta.getRemoved()) {
+                        System.out.println("- #" + id);
+                    }
+                }
+                replica.apply(delta);
+                System.out.println(delta);
             }
         });
 
@@ -82,41 +142,72 @@ public class Client implements Runnable, Closeable {
                         "Check email or use another one");
             }
         });
+        for (PacketMessage.Head head : new PacketMessage.Head[]{PacketMessage.Head.ADD, PacketMessage.Head.REMOVE,
+                PacketMessage.Head.REMOVE_FIRST, PacketMessage.Head.REMOVE_LAST}) {
+            messageProcessor.setResponseProcessor(head, msg -> {
+                if (!Boolean.TRUE.equals(msg.getBody())) {
+                    System.out.println("Server could not execute " + msg.getHead());
+                }
+            });
+        }
+        messageProcessor.setResponseProcessor(PacketMessage.Head.BUSY,
+                msg -> System.out.println("Server is busy, could not execute " + msg.getBody() + ". Try again later"));
+        messageProcessor.setResponseProcessor(PacketMessage.Head.SESSION_EXPIRED, msg -> {
+            loggedIn = false;
+            sessionToken = null;
+            System.out.println("Session expired, could not execute " + msg.getBody() + ". Log in again");
+        });
         messageProcessor.setResponseProcessor(PacketMessage.Head.LOGIN, msg -> {
             loggedIn = Boolean.TRUE.equals(msg.getBody());
+            sessionToken = msg.getSessionToken();
+            replica.clear();
             System.out.println((loggedIn ? "You successfully authorized" : "Something went wrong! Try again now or later"));
         });
     }
 
     public void run() {
+        Thread dispatcherThread = new Thread(dispatcher, "response-dispatcher");
+        dispatcherThread.setDaemon(true);
+        dispatcherThread.start();
+
         try (Scanner scanner = new Scanner(System.in)) {
             ConsoleInterface authContext = new ConsoleInterface(scanner);
-            authContext.setCommand("login", line -> sendRequest(loginMessage(line)));
-            authContext.setCommand("register", line -> sendRequest(registerMessage(line)));
+            // The next prompt depends on the result, so these wait for the response
+            authContext.setCommand("login", line -> sendRequest(loginMessage(line)).join());
+            authContext.setCommand("register", line -> sendRequest(registerMessage(line)).join());
 
             ConsoleInterface defaultContext = new ConsoleInterface(scanner);
             defaultContext.setCommand("exit", line -> shouldRun = false);
             defaultContext.setCommand("stop",
-                    line -> sendRequest(new PacketMessage(true, PacketMessage.Head.STOP, null, login, hashPassword)));
+                    line -> sendRequest(request(PacketMessage.Head.STOP, null)));
             defaultContext.setCommand("info",
-                    line -> sendRequest(new PacketMessage(true, PacketMessage.Head.INFO, null, login, hashPassword)));
+                    line -> sendRequest(request(PacketMessage.Head.INFO, null)));
             defaultContext.setCommand("remove_first",
-                    line -> sendRequest(new PacketMessage(true, PacketMessage.Head.REMOVE_FIRST, null, login, hashPassword)));
+                    line -> sendRequest(removeMessage(PacketMessage.Head.REMOVE_FIRST, line)));
             defaultContext.setCommand("remove_last",
-                    line -> sendRequest(new PacketMessage(true, PacketMessage.Head.REMOVE_LAST, null, login, hashPassword)));
+                    line -> sendRequest(removeMessage(PacketMessage.Head.REMOVE_LAST, line)));
             defaultContext.setCommand("add",
                     line -> sendRequest(messageWithElement(PacketMessage.Head.ADD, line)));
             defaultContext.setCommand("remove",
                     line -> sendRequest(messageWithElement(PacketMessage.Head.REMOVE, line)));
-            defaultContext.setCommand("show",
-                    line -> sendRequest(new PacketMessage(true, PacketMessage.Head.SHOW, null, login, hashPassword)));
+            defaultContext.setCommand("show", this::showPages);
+            defaultContext.setCommand("within", line -> sendRequest(withinMessage(line)));
+            defaultContext.setCommand("nearest", line -> sendRequest(nearestMessage(line)));
+            defaultContext.setCommand("filter", line -> sendRequest(filterMessage(line)));
+            // Changes since the previous sync only, the next sync is sent after this one is applied
+            defaultContext.setCommand("sync", line -> sendRequest(
+                    request(PacketMessage.Head.CHANGES, replica.getRevision())).join());
             defaultContext.setCommand("load",
-                    line -> sendRequest(new PacketMessage(true, PacketMessage.Head.LOAD, null, login, hashPassword)));
+                    line -> sendRequest(request(PacketMessage.Head.LOAD, null)));
             defaultContext.setCommand("save",
-                    line -> sendRequest(new PacketMessage(true, PacketMessage.Head.SAVE, null, login, hashPassword)));
-            defaultContext.setCommand("import",
-                    line -> sendRequest(importMessage(line)));
-            defaultContext.setCommand("logout", line -> loggedIn = false);
+                    line -> sendRequest(request(PacketMessage.Head.SAVE, null)));
+            defaultContext.setCommand("import", this::importFile);
+            defaultContext.setCommand("logout", line -> {
+                sendRequest(request(PacketMessage.Head.LOGOUT, null));
+                loggedIn = false;
+                sessionToken = null;
+                replica.clear();
+            });
 
             while (shouldRun) {
                 try {
@@ -130,6 +221,7 @@ public class Client implements Runnable, Closeable {
                 }
             }
         }
+        dispatcher.awaitAll();
     }
 
     private void printLoginMessage() {
@@ -140,72 +232,331 @@ public class Client implements Runnable, Closeable {
 
     @Override
     public void close() {
+        dispatcher.close();
         socket.close();
     }
 
-    private void sendRequest(PacketMessage packetMessage) {
+    // Send the request without waiting for the response, which is handled by the message processor.
+    // Complete with the response, or null if there is none.
+    private CompletableFuture<PacketMessage> sendRequest(PacketMessage packetMessage) {
         if (packetMessage == null) {
-            return;
+            return CompletableFuture.completedFuture(null);
         }
 
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        try (ObjectOutputStream oo = new ObjectOutputStream(outputStream)) {
-            oo.writeObject(packetMessage);
-        } catch (IOException ignored) {
+        boolean expectResponse = messageProcessor.hasResponseProcessor(packetMessage.getHead());
+        return dispatcher.send(packetMessage, expectResponse).handle((response, e) -> {
+            if (e != null) {
+                Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                System.err.println(cause instanceof SocketTimeoutException
+                        ? "Could not get response from server"
+                        : "Could not send request to server");
+                return null;
+            }
+            if (response != null) {
+                messageProcessor.process(response);
+            }
+            return response;
+        });
+    }
+
+    // show takes an optional page size. Pages are printed as they arrive,
+    // the next one is requested after the last element of the previous one.
+    // show local prints the replica as of the last sync without asking the server.
+    private void showPages(String line) {
+        if (line.trim().equals("local")) {
+            replica.getElements().forEach(System.out::println);
+            return;
+        }
+        int pageSize = PAGE_SIZE;
+        if (!line.trim().isEmpty()) {
+            try {
+                pageSize = Integer.parseInt(line.trim());
+            } catch (NumberFormatException e) {
+                System.err.println("Could not parse page size: " + line.trim());
+                return;
+            }
+            if (pageSize < 1) {
+                System.err.println("Page size must be positive");
+                return;
+            }
         }
 
-        byte[] sendBytes = outputStream.toByteArray();
-        DatagramPacket sendPacket = new DatagramPacket(sendBytes, sendBytes.length, address, port);
+        Cursor after = null;
+        do {
+            PacketMessage response = sendRequest(request(PacketMessage.Head.SHOW,
+                    new PageRequest(after, pageSize))).join();
+            after = response != null && response.getBody() instanceof Page
+                    ? ((Page) response.getBody()).getNext()
+                    : null;
+        } while (after != null);
+    }
 
+    private PacketMessage messageWithElement(PacketMessage.Head head, String line) {
+        try {
+            CollectionElement element = gson.fromJson(line, CollectionElement.class);
+            return request(head, element);
+        } catch (JsonParseException e) {
+            System.err.println("Could not parse JSON object");
+            return null;
+        }
+    }
 
+    // remove_first and remove_last take an optional number of elements to remove
+    private PacketMessage removeMessage(PacketMessage.Head head, String line) {
+        if (line.trim().isEmpty()) {
+            return request(head, null);
+        }
         try {
-            socket.send(sendPacket);
-        } catch (IOException e) {
-            System.err.println("Could not send request to server");
-            return;
+            int count = Integer.parseInt(line.trim());
+            if (count < 1) {
+                System.err.println("Number of elements must be positive");
+                return null;
+            }
+            return request(head, count);
+        } catch (NumberFormatException e) {
+            System.err.println("Could not parse number of elements: " + line.trim());
+            return null;
         }
+    }
 
-        if (!messageProcessor.hasResponseProcessor(packetMessage.getHead())) {
-            return;
+    // within takes two opposite corners of the area: x1 y1 x2 y2
+    private PacketMessage withinMessage(String line) {
+        double[] corners = parseNumbers(line, 4, 4);
+        if (corners == null) {
+            System.err.println("Usage: within x1 y1 x2 y2");
+            return null;
         }
+        return request(PacketMessage.Head.WITHIN, new Area(corners[0], corners[1], corners[2], corners[3]));
+    }
 
-        byte[] receiveBytes = new byte[0x10000];
-        DatagramPacket receivePacket = new DatagramPacket(receiveBytes, receiveBytes.length);
+    // nearest takes the position and an optional number of elements: x y [count]
+    private PacketMessage nearestMessage(String line) {
+        double[] arguments = parseNumbers(line, 2, 3);
+        if (arguments == null) {
+            System.err.println("Usage: nearest x y [count]");
+            return null;
+        }
+        int count = NEAREST_COUNT;
+        if (arguments.length == 3) {
+            count = (int) arguments[2];
+            if (count < 1 || count != arguments[2]) {
+                System.err.println("Number of elements must be a positive integer");
+                return null;
+            }
+        }
+        return request(PacketMessage.Head.NEAREST, new NearestRequest(new Position(arguments[0], arguments[1]), count));
+    }
 
+    // filter takes a JSON object of conditions that must all hold, for example
+    // {"namePrefix": "a", "or": [{"size": [1, 5]}, {"created": ["2020-01-01T00:00", null]}]}.
+    // Other conditions are {"name": "a"} and {"position": [x1, y1, x2, y2]}.
+    private PacketMessage filterMessage(String line) {
         try {
-            socket.receive(receivePacket);
+            return request(PacketMessage.Head.FILTER, parseFilter(new JsonParser().parse(line)));
+        } catch (JsonParseException | IllegalStateException | IllegalArgumentException
+                | UnsupportedOperationException | IndexOutOfBoundsException | DateTimeException e) {
+            System.err.println("Could not parse filter: " + e.getMessage());
+            return null;
+        }
+    }
 
-            ByteArrayInputStream inputStream = new ByteArrayInputStream(receiveBytes);
-            try (ObjectInputStream oi = new ObjectInputStream(inputStream)) {
-                Object obj = oi.readObject();
-                if (obj instanceof PacketMessage) {
-                    messageProcessor.process((PacketMessage) obj);
+    private static ElementFilter parseFilter(JsonElement json) {
+        if (!json.isJsonObject()) {
+            throw new JsonParseException("Expected an object of conditions");
+        }
+        List<ElementFilter> conditions = new ArrayList<>();
+        for (Map.Entry<String, JsonElement> entry : json.getAsJsonObject().entrySet()) {
+            JsonElement value = entry.getValue();
+            switch (entry.getKey()) {
+                case "name":
+                    conditions.add(ElementFilter.nameEquals(value.isJsonNull() ? null : value.getAsString()));
+                    break;
+                case "namePrefix":
+                    conditions.add(ElementFilter.nameStartsWith(value.getAsString()));
+                    break;
+                case "size": {
+                    JsonArray range = value.getAsJsonArray();
+                    conditions.add(ElementFilter.sizeBetween(range.get(0).getAsDouble(), range.get(1).getAsDouble()));
+                    break;
+                }
+                case "position": {
+                    JsonArray corners = value.getAsJsonArray();
+                    conditions.add(ElementFilter.within(new Area(corners.get(0).getAsDouble(),
+                            corners.get(1).getAsDouble(), corners.get(2).getAsDouble(), corners.get(3).getAsDouble())));
+                    break;
+                }
+                case "created": {
+                    // An open end is null
+                    JsonArray range = value.getAsJsonArray();
+                    conditions.add(ElementFilter.createdBetween(
+                            range.get(0).isJsonNull() ? null : LocalDateTime.parse(range.get(0).getAsString()),
+                            range.get(1).isJsonNull() ? null : LocalDateTime.parse(range.get(1).getAsString())));
+                    break;
+                }
+                case "and":
+                case "or": {
+                    List<ElementFilter> operands = new ArrayList<>();
+                    for (JsonElement operand : value.getAsJsonArray()) {
+                        operands.add(parseFilter(operand));
+                    }
+                    conditions.add(entry.getKey().equals("and")
+                            ? ElementFilter.and(operands)
+                            : ElementFilter.or(operands));
+                    break;
                 }
-            } catch (ClassNotFoundException ignored) {
+                default:
+                    throw new JsonParseException("Unknown condition " + entry.getKey());
             }
-        } catch (IOException e) {
-            System.err.println("Could not get response from server");
         }
+        return conditions.size() == 1 ? conditions.get(0) : ElementFilter.and(conditions);
     }
 
-    private PacketMessage messageWithElement(PacketMessage.Head head, String line) {
+    // Numbers separated by spaces, null if there are too few or too many of them or one could not be parsed
+    private static double[] parseNumbers(String line, int min, int max) {
+        String[] words = line.trim().isEmpty() ? new String[0] : line.trim().split("\\s+");
+        if (words.length < min || words.length > max) {
+            return null;
+        }
+        double[] numbers = new double[words.length];
         try {
-            CollectionElement element = gson.fromJson(line, CollectionElement.class);
-            return new PacketMessage(true, head, element, login, hashPassword);
-        } catch (JsonParseException e) {
-            System.err.println("Could not parse JSON object");
+            for (int i = 0; i < words.length; i++) {
+                numbers[i] = Double.parseDouble(words[i]);
+            }
+        } catch (NumberFormatException e) {
             return null;
         }
+        return numbers;
     }
 
-    private PacketMessage importMessage(String line) {
-        try {
-            String str = new String(Files.readAllBytes(new File(line.trim()).toPath()));
-            return new PacketMessage(true, PacketMessage.Head.IMPORT, str);
-        } catch (IOException | InvalidPathException e) {
+    private static class ImportBatch {
+        private final List<CollectionElement> elements;
+        private CompletableFuture<PacketMessage> response;
+        private int attempts = 0;
+
+        private ImportBatch(List<CollectionElement> elements) {
+            this.elements = elements;
+        }
+    }
+
+    // import reads a JSON array of elements from the file as it goes and sends it in batches,
+    // waiting for the oldest batch while IMPORT_WINDOW of them are unanswered.
+    // Batches the server was too busy for are sent again after a pause.
+    private void importFile(String line) {
+        Deque<ImportBatch> inFlight = new ArrayDeque<>();
+        int[] imported = {0};
+        int read = 0;
+        boolean failed = false;
+        try (JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(
+                new FileInputStream(line.trim()), StandardCharsets.UTF_8)))) {
+            if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+                System.err.println("File must contain a JSON array of elements");
+                return;
+            }
+            reader.beginArray();
+            List<CollectionElement> batch = new ArrayList<>();
+            int batchBytes = 0;
+            while (reader.hasNext()) {
+                CollectionElement element = gson.fromJson(reader, CollectionElement.class);
+                read++;
+                if (element == null || element.getPosition() == null || element.getCreationDate() == null) {
+                    System.err.println("Element #" + read + " is incomplete");
+                    break;
+                }
+                int bytes = estimateSize(element);
+                if (!batch.isEmpty() && (batch.size() == IMPORT_BATCH || batchBytes + bytes > IMPORT_BATCH_BYTES)) {
+                    if (!sendImportBatch(inFlight, new ImportBatch(batch), imported)) {
+                        // The batch was sent already, it must not be sent again below
+                        batch = new ArrayList<>();
+                        failed = true;
+                        break;
+                    }
+                    batch = new ArrayList<>();
+                    batchBytes = 0;
+                }
+                batch.add(element);
+                batchBytes += bytes;
+            }
+            if (!batch.isEmpty()) {
+                failed = !sendImportBatch(inFlight, new ImportBatch(batch), imported);
+            }
+        } catch (IOException | JsonParseException e) {
             System.err.println("Could not read file: " + e.getMessage());
-            return null;
         }
+        // Whatever was sent is either confirmed or reported as lost
+        while (!inFlight.isEmpty()) {
+            failed |= !settleImportBatch(inFlight, imported);
+        }
+        System.out.println("Imported " + imported[0] + " of " + read + " elements" + (failed ? ", import failed" : ""));
+    }
+
+    // Return false if an earlier batch failed and the import has to stop
+    private boolean sendImportBatch(Deque<ImportBatch> inFlight, ImportBatch batch, int[] imported) {
+        batch.response = sendImport(batch);
+        inFlight.add(batch);
+        while (inFlight.size() >= IMPORT_WINDOW) {
+            if (!settleImportBatch(inFlight, imported)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Wait for the oldest batch in flight, return false if it could not be imported
+    private boolean settleImportBatch(Deque<ImportBatch> inFlight, int[] imported) {
+        ImportBatch batch = inFlight.poll();
+        PacketMessage response = batch.response.join();
+        if (response == null) {
+            return false;
+        }
+        if (response.getHead() == PacketMessage.Head.BUSY && batch.attempts < IMPORT_ATTEMPTS) {
+            try {
+                Thread.sleep(100L << batch.attempts);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            batch.response = sendImport(batch);
+            inFlight.add(batch);
+            return true;
+        }
+        if (response.getHead() != PacketMessage.Head.IMPORT) {
+            messageProcessor.process(response);
+            return false;
+        }
+        if (!Boolean.TRUE.equals(response.getBody())) {
+            System.out.println("Server could not import " + batch.elements.size() + " elements");
+            return false;
+        }
+        imported[0] += batch.elements.size();
+        return true;
+    }
+
+    // Busy responses are handled by the import itself, so the response does not go to the message processor
+    private CompletableFuture<PacketMessage> sendImport(ImportBatch batch) {
+        batch.attempts++;
+        return dispatcher.send(request(PacketMessage.Head.IMPORT, batch.elements), true).handle((response, e) -> {
+            if (e != null) {
+                Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                System.err.println(cause instanceof SocketTimeoutException
+                        ? "Could not get response from server"
+                        : "Could not send request to server: " + cause.getMessage());
+                return null;
+            }
+            return response;
+        });
+    }
+
+    // Upper bound of the encoded size: name of up to 3 bytes per char, size, position and creation date
+    private static int estimateSize(CollectionElement element) {
+        String name = element.getName();
+        return 48 + (name == null ? 0 : 3 * name.length());
+    }
+
+    // Request on behalf of the logged in user, identified by the session token only
+    private PacketMessage request(PacketMessage.Head head, Object body) {
+        PacketMessage message = new PacketMessage(true, head, body);
+        message.setSessionToken(sessionToken);
+        return message;
     }
 
     private PacketMessage loginMessage(String line) {
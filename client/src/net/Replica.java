@@ -0,0 +1,51 @@
+package net;
+
+import collection.CollectionElement;
+import collection.Delta;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Local copy of the user's collection kept up to date with deltas from the server
+public class Replica {
+    private static final Comparator<CollectionElement> ORDER = Comparator
+            .comparingDouble(CollectionElement::getSize)
+            .thenComparingLong(CollectionElement::getId);
+
+    private final Map<Long, CollectionElement> elements = new HashMap<>();
+    // -1 until the first snapshot arrives
+    private long revision = -1;
+
+    public synchronized long getRevision() {
+        return revision;
+    }
+
+    // Deltas must be applied in the order they were requested
+    public synchronized void apply(Delta delta) {
+        if (delta.isSnapshot()) {
+            elements.clear();
+        }
+        for (long id : delta.getRemoved()) {
+            elements.remove(id);
+        }
+        for (CollectionElement element : delta.getAdded()) {
+            elements.put(element.getId(), element);
+        }
+        revision = delta.getRevision();
+    }
+
+    // Elements ordered by size and id, the same order the server shows them in
+    public synchronized List<CollectionElement> getElements() {
+        List<CollectionElement> result = new ArrayList<>(elements.values());
+        result.sort(ORDER);
+        return result;
+    }
+
+    public synchronized void clear() {
+        elements.clear();
+        revision = -1;
+    }
+}
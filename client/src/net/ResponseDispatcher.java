@@ -0,0 +1,223 @@
+package net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Sends requests without waiting for the previous ones and matches responses to them by request id.
+// Requests are sent again until a response arrives, the server answers retransmitted mutations from its cache.
+public class ResponseDispatcher implements Runnable, Closeable {
+    private static final int SWEEP_INTERVAL = 50;
+    private static final int FRAGMENT_TIMEOUT = 300;
+    private static final int MAX_NACK_INDICES = 1024;
+    private static final int MAX_ATTEMPTS = 6;
+
+    private static class Pending {
+        private final CompletableFuture<PacketMessage> future = new CompletableFuture<>();
+        private final byte[] packet;
+        private final long deadline;
+        private long sentAt;
+        private long retransmitAt;
+        private int attempts = 1;
+
+        private Pending(byte[] packet, long sentAt, long retransmitAt, long deadline) {
+            this.packet = packet;
+            this.sentAt = sentAt;
+            this.retransmitAt = retransmitAt;
+            this.deadline = deadline;
+        }
+    }
+
+    private final DatagramSocket socket;
+    private final InetAddress address;
+    private final int port;
+    private final long responseTimeout;
+
+    private final Map<Long, Pending> pending = new ConcurrentHashMap<>();
+    private final Semaphore window;
+    private final AtomicLong nextRequestId = new AtomicLong(1);
+    private final FragmentAssembler assembler = new FragmentAssembler();
+    private final RttEstimator rttEstimator = new RttEstimator();
+
+    private final ByteBuffer sendBuffer = ByteBuffer.allocate(0x10000);
+    private final ByteBuffer nackBuffer = ByteBuffer.allocate(0x10000);
+    private final byte[] receiveBytes = new byte[0x10000];
+
+    private volatile boolean closed = false;
+
+    public ResponseDispatcher(DatagramSocket socket, InetAddress address, int port,
+                              int maxInFlight, long responseTimeout) throws SocketException {
+        this.socket = socket;
+        this.address = address;
+        this.port = port;
+        this.responseTimeout = responseTimeout;
+        this.window = new Semaphore(maxInFlight);
+        socket.setSoTimeout(SWEEP_INTERVAL);
+    }
+
+    // Complete with the response, or exceptionally if the server did not answer in time.
+    // Blocks while too many requests are waiting for responses.
+    public CompletableFuture<PacketMessage> send(PacketMessage request, boolean expectResponse) {
+        long requestId = nextRequestId.getAndIncrement();
+        request.setRequestId(requestId);
+
+        byte[] packet;
+        try {
+            packet = encode(request);
+        } catch (IOException e) {
+            CompletableFuture<PacketMessage> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+
+        if (!expectResponse) {
+            try {
+                sendPacket(packet);
+                return CompletableFuture.completedFuture(null);
+            } catch (IOException e) {
+                CompletableFuture<PacketMessage> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                return failed;
+            }
+        }
+
+        window.acquireUninterruptibly();
+        long now = System.currentTimeMillis();
+        Pending entry = new Pending(packet, now, now + rttEstimator.getTimeout(), now + responseTimeout);
+        entry.future.whenComplete((response, e) -> window.release());
+        pending.put(requestId, entry);
+
+        try {
+            sendPacket(packet);
+        } catch (IOException e) {
+            pending.remove(requestId);
+            entry.future.completeExceptionally(e);
+        }
+        return entry.future;
+    }
+
+    // Wait until every sent request got its response or timed out
+    public void awaitAll() {
+        for (Pending entry : pending.values()) {
+            try {
+                entry.future.join();
+            } catch (RuntimeException ignored) {
+            }
+        }
+    }
+
+    private byte[] encode(PacketMessage request) throws IOException {
+        synchronized (sendBuffer) {
+            sendBuffer.clear();
+            try {
+                WireFormat.BINARY.encode(request, sendBuffer);
+            } catch (BufferOverflowException e) {
+                throw new IOException("Request does not fit into a datagram");
+            }
+            return Arrays.copyOf(sendBuffer.array(), sendBuffer.position());
+        }
+    }
+
+    private void sendPacket(byte[] packet) throws IOException {
+        socket.send(new DatagramPacket(packet, packet.length, address, port));
+    }
+
+    @Override
+    public void run() {
+        DatagramPacket receivePacket = new DatagramPacket(receiveBytes, receiveBytes.length);
+        long lastSweep = System.currentTimeMillis();
+        while (!closed) {
+            receivePacket.setLength(receiveBytes.length);
+            try {
+                socket.receive(receivePacket);
+                ByteBuffer buffer = ByteBuffer.wrap(receiveBytes, 0, receivePacket.getLength());
+                if (Fragments.isFragment(buffer)) {
+                    buffer = assembler.accept(buffer);
+                }
+                if (buffer != null) {
+                    dispatch(WireFormat.detect(buffer).decode(buffer));
+                }
+            } catch (SocketTimeoutException ignored) {
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("Could not read response from server: " + e.getMessage());
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            if (now - lastSweep >= SWEEP_INTERVAL) {
+                sendNacks();
+                retransmit(now);
+                lastSweep = now;
+            }
+        }
+    }
+
+    private void dispatch(PacketMessage response) {
+        Pending entry = pending.remove(response.getRequestId());
+        // Late responses to requests that already timed out are dropped
+        if (entry == null) {
+            return;
+        }
+        // Karn's algorithm: the round trip of a retransmitted request is ambiguous
+        if (entry.attempts == 1) {
+            rttEstimator.addSample(System.currentTimeMillis() - entry.sentAt);
+        }
+        entry.future.complete(response);
+    }
+
+    private void sendNacks() {
+        for (Map.Entry<Integer, int[]> entry : assembler.getMissing(FRAGMENT_TIMEOUT).entrySet()) {
+            int[] missing = entry.getValue();
+            for (int from = 0; from < missing.length; from += MAX_NACK_INDICES) {
+                nackBuffer.clear();
+                Fragments.putNack(nackBuffer, entry.getKey(),
+                        Arrays.copyOfRange(missing, from, Math.min(missing.length, from + MAX_NACK_INDICES)));
+                try {
+                    socket.send(new DatagramPacket(nackBuffer.array(), nackBuffer.position(), address, port));
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void retransmit(long now) {
+        // While a fragmented response is arriving the server is busy answering, not losing requests
+        boolean receivingFragments = !assembler.isEmpty();
+        pending.forEach((requestId, entry) -> {
+            if (entry.deadline <= now || (entry.attempts >= MAX_ATTEMPTS && entry.retransmitAt <= now)) {
+                if (pending.remove(requestId, entry)) {
+                    entry.future.completeExceptionally(
+                            new SocketTimeoutException("No response to request " + requestId));
+                }
+            } else if (entry.retransmitAt <= now && !receivingFragments) {
+                entry.attempts++;
+                entry.sentAt = now;
+                entry.retransmitAt = now + rttEstimator.getTimeout(entry.attempts - 1);
+                try {
+                    sendPacket(entry.packet);
+                } catch (IOException ignored) {
+                }
+            }
+        });
+        assembler.removeIdle(responseTimeout);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        pending.values().forEach(entry -> entry.future.cancel(false));
+    }
+}
@@ -0,0 +1,35 @@
+package net;
+
+// Retransmission timeout computed from round trip times as described in RFC 6298
+public class RttEstimator {
+    private static final long MIN_TIMEOUT = 200;
+    private static final long MAX_TIMEOUT = 5_000;
+
+    private double smoothedRtt = -1;
+    private double rttVariation;
+    private long timeout = 1_000;
+
+    public synchronized void addSample(long rtt) {
+        if (smoothedRtt < 0) {
+            smoothedRtt = rtt;
+            rttVariation = rtt / 2.0;
+        } else {
+            rttVariation = 0.75 * rttVariation + 0.25 * Math.abs(smoothedRtt - rtt);
+            smoothedRtt = 0.875 * smoothedRtt + 0.125 * rtt;
+        }
+        timeout = clamp((long) Math.ceil(smoothedRtt + Math.max(10, 4 * rttVariation)));
+    }
+
+    public synchronized long getTimeout() {
+        return timeout;
+    }
+
+    // Timeout for the given retransmission attempt, doubled after every loss
+    public synchronized long getTimeout(int attempt) {
+        return clamp(timeout << Math.min(attempt, 10));
+    }
+
+    private static long clamp(long value) {
+        return Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, value));
+    }
+}
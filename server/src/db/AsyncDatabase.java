@@ -0,0 +1,42 @@
+package db;
+
+import collection.Area;
+import collection.CollectionElement;
+import collection.CollectionInfo;
+import collection.Cursor;
+import collection.Delta;
+import collection.ElementFilter;
+import collection.Page;
+import collection.Position;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+// Database operations that do not block the caller, see Database for their meaning.
+// The futures fail with RejectedExecutionException when storage is overloaded.
+public interface AsyncDatabase extends AutoCloseable {
+    CompletableFuture<List<CollectionElement>> show(int userId);
+    CompletableFuture<Page> show(int userId, Cursor after, int limit);
+    CompletableFuture<CollectionInfo> info(int userId);
+    CompletableFuture<List<CollectionElement>> within(int userId, Area area);
+    CompletableFuture<List<CollectionElement>> nearest(int userId, Position position, int count);
+    CompletableFuture<List<CollectionElement>> filter(int userId, ElementFilter filter);
+    CompletableFuture<Delta> changes(int userId, long since);
+    CompletableFuture<CollectionElement> addElement(CollectionElement element, int userId);
+    CompletableFuture<List<CollectionElement>> addElements(List<CollectionElement> elements, int userId);
+    CompletableFuture<Boolean> removeElement(CollectionElement element, int userId);
+    CompletableFuture<List<CollectionElement>> removeFirst(int userId, int count);
+    CompletableFuture<List<CollectionElement>> removeLast(int userId, int count);
+    CompletableFuture<Void> addUser(String email, String userPassword);
+    CompletableFuture<Boolean> checkUser(String email, String userPassword);
+    CompletableFuture<Integer> getUserId(String email, String userPassword);
+    CompletableFuture<Boolean> consistsUser(String email);
+
+    CompletableFuture<Boolean> addElement(CollectionElement element, String email, String passwordHash);
+    CompletableFuture<Boolean> addElements(List<CollectionElement> elements, String email, String passwordHash);
+    CompletableFuture<Boolean> removeElement(CollectionElement element, String email, String passwordHash);
+    CompletableFuture<Boolean> removeFirst(String email, String passwordHash, int count);
+    CompletableFuture<Boolean> removeLast(String email, String passwordHash, int count);
+
+    void warmUp(int userId);
+}
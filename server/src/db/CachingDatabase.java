@@ -0,0 +1,439 @@
+package db;
+
+import collection.Area;
+import collection.CollectionElement;
+import collection.CollectionInfo;
+import collection.Cursor;
+import collection.Delta;
+import collection.ElementFilter;
+import collection.ElementColumns;
+import collection.Page;
+import collection.Position;
+
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Keeps collections of recently active users in memory ordered by size and id, in columns of primitive arrays.
+// Changes are written through to the wrapped database and then applied to the cached collection,
+// so reads do not go to the database and removals from the ends do not search the collection.
+// Changes made by other servers arrive as notifications and are patched in from the database.
+public class CachingDatabase implements Database, ChangeSubscriber {
+    // Rough heap footprint of a cached element in the columns and the spatial index
+    static final long ELEMENT_BYTES = 100;
+
+    private static final Comparator<CollectionElement> ORDER = Comparator
+            .comparingDouble(CollectionElement::getSize)
+            .thenComparingLong(CollectionElement::getId);
+
+    private static class UserCollection {
+        private final ElementColumns elements = new ElementColumns();
+        private final SpatialIndex spatial = new SpatialIndex();
+        // Completes with false if the collection could not be loaded
+        private final CompletableFuture<Boolean> ready = new CompletableFuture<>();
+        // Changes committed while the collection was loading, they are applied over the loaded elements.
+        // Applying a change twice does nothing, so it does not matter whether the load saw it.
+        private List<Consumer<UserCollection>> pending = new ArrayList<>();
+        private LocalDateTime creationDate;
+        private LocalDateTime lastModified;
+        // Revision of the database the elements were last brought up to
+        private long revision;
+        // Guarded by the users map
+        private long accounted = 0;
+        private volatile boolean evicted = false;
+
+        private void add(CollectionElement element) {
+            if (elements.add(element)) {
+                spatial.add(element);
+            }
+        }
+
+        private void remove(long id) {
+            CollectionElement element = elements.remove(id);
+            if (element != null) {
+                spatial.remove(element);
+            }
+        }
+
+        private void apply(Delta delta) {
+            if (delta.isSnapshot()) {
+                elements.clear();
+                spatial.clear();
+            }
+            for (long id : delta.getRemoved()) {
+                remove(id);
+            }
+            delta.getAdded().forEach(this::add);
+            revision = Math.max(revision, delta.getRevision());
+        }
+    }
+
+    private final Database delegate;
+    private final int maxUsers;
+    private final long maxElements;
+    // Least recently used first
+    private final LinkedHashMap<Integer, UserCollection> users = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedElements = 0;
+    // Loads collections of users that logged in and patches collections changed elsewhere
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "cache-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public CachingDatabase(Database delegate, int maxUsers, long memoryBudget) {
+        this.delegate = delegate;
+        this.maxUsers = maxUsers;
+        this.maxElements = Math.max(1, memoryBudget / ELEMENT_BYTES);
+    }
+
+    @Override
+    public List<CollectionElement> show(int userId) {
+        UserCollection collection = acquire(userId);
+        if (collection == null) {
+            return delegate.show(userId);
+        }
+        System.out.println("Request 'show' from user #" + userId + " served from cache");
+        synchronized (collection) {
+            return collection.elements.toList();
+        }
+    }
+
+    @Override
+    public Page show(int userId, Cursor after, int limit) {
+        UserCollection collection = acquire(userId);
+        if (collection == null) {
+            return delegate.show(userId, after, limit);
+        }
+        System.out.println("Request 'show' of " + limit + " elements after " + after +
+                " from user #" + userId + " served from cache");
+        synchronized (collection) {
+            return collection.elements.page(after, limit);
+        }
+    }
+
+    @Override
+    public CollectionInfo info(int userId) {
+        UserCollection collection = acquire(userId);
+        if (collection == null) {
+            return delegate.info(userId);
+        }
+        System.out.println("Request 'info' from user #" + userId + " served from cache");
+        synchronized (collection) {
+            return collection.elements.info(collection.creationDate, collection.lastModified);
+        }
+    }
+
+    @Override
+    public List<CollectionElement> within(int userId, Area area) {
+        UserCollection collection = acquire(userId);
+        if (collection == null) {
+            return delegate.within(userId, area);
+        }
+        System.out.println("Request 'within' " + area + " from user #" + userId + " served from cache");
+        List<CollectionElement> elements;
+        synchronized (collection) {
+            elements = elementsById(collection, collection.spatial.within(area));
+        }
+        elements.sort(ORDER);
+        return elements;
+    }
+
+    @Override
+    public List<CollectionElement> nearest(int userId, Position position, int count) {
+        UserCollection collection = acquire(userId);
+        if (collection == null) {
+            return delegate.nearest(userId, position, count);
+        }
+        System.out.println("Request 'nearest' " + count + " to " + position +
+                " from user #" + userId + " served from cache");
+        synchronized (collection) {
+            return elementsById(collection, collection.spatial.nearest(position, count));
+        }
+    }
+
+    @Override
+    public List<CollectionElement> filter(int userId, ElementFilter filter) {
+        UserCollection collection = acquire(userId);
+        if (collection == null) {
+            return delegate.filter(userId, filter);
+        }
+        System.out.println("Request 'filter' " + filter + " from user #" + userId + " served from cache");
+        synchronized (collection) {
+            return collection.elements.select(filter);
+        }
+    }
+
+    // Revisions are kept by the database only
+    @Override
+    public Delta changes(int userId, long since) {
+        return delegate.changes(userId, since);
+    }
+
+    @Override
+    public CollectionElement addElement(CollectionElement element, int userId) {
+        return added(userId, delegate.addElement(element, userId));
+    }
+
+    // The cache is updated by the thread that completes the commit
+    @Override
+    public CompletableFuture<CollectionElement> submitAdd(CollectionElement element, int userId) {
+        return delegate.submitAdd(element, userId).thenApply(stored -> added(userId, stored));
+    }
+
+    @Override
+    public List<CollectionElement> addElements(List<CollectionElement> elements, int userId) {
+        List<CollectionElement> stored = delegate.addElements(elements, userId);
+        if (stored == null) {
+            invalidate(userId);
+            return null;
+        }
+        change(userId, collection -> stored.forEach(collection::add));
+        return stored;
+    }
+
+    @Override
+    public boolean removeElement(CollectionElement element, int userId) {
+        return removed(userId, element, delegate.removeElement(element, userId));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> submitRemove(CollectionElement element, int userId) {
+        return delegate.submitRemove(element, userId).thenApply(success -> removed(userId, element, success));
+    }
+
+    @Override
+    public List<CollectionElement> removeFirst(int userId, int count) {
+        List<CollectionElement> removed = delegate.removeFirst(userId, count);
+        change(userId, collection -> removed.forEach(element -> collection.remove(element.getId())));
+        return removed;
+    }
+
+    @Override
+    public List<CollectionElement> removeLast(int userId, int count) {
+        List<CollectionElement> removed = delegate.removeLast(userId, count);
+        change(userId, collection -> removed.forEach(element -> collection.remove(element.getId())));
+        return removed;
+    }
+
+    @Override
+    public void addUser(String email, String userPassword) {
+        delegate.addUser(email, userPassword);
+    }
+
+    @Override
+    public boolean checkUser(String email, String userPassword) {
+        return delegate.checkUser(email, userPassword);
+    }
+
+    @Override
+    public int getUserId(String email, String userPassword) {
+        return delegate.getUserId(email, userPassword);
+    }
+
+    @Override
+    public boolean consistsUser(String email) {
+        return delegate.consistsUser(email);
+    }
+
+    // Load the collection in background so that the login response is not delayed
+    @Override
+    public void warmUp(int userId) {
+        loader.execute(() -> acquire(userId));
+    }
+
+    // Own changes are notified as well, they cost no query unless other changes came in between
+    @Override
+    public void changed(int userId, long revision, int elements, boolean own) {
+        UserCollection collection;
+        synchronized (users) {
+            collection = users.get(userId);
+        }
+        if (collection != null) {
+            loader.execute(() -> refresh(userId, collection, revision, own ? elements : -1));
+        }
+    }
+
+    @Override
+    public void reset() {
+        synchronized (users) {
+            users.values().forEach(this::evict);
+            users.clear();
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        loader.shutdown();
+        loader.awaitTermination(10, TimeUnit.SECONDS);
+        delegate.close();
+    }
+
+    // Return the loaded collection of the user, or null if it could not be loaded
+    private UserCollection acquire(int userId) {
+        if (userId < 0) {
+            return null;
+        }
+        UserCollection collection;
+        boolean load = false;
+        synchronized (users) {
+            collection = users.get(userId);
+            if (collection == null) {
+                collection = new UserCollection();
+                users.put(userId, collection);
+                load = true;
+            }
+        }
+        if (load) {
+            load(userId, collection);
+        }
+        return collection.ready.join() ? collection : null;
+    }
+
+    private void load(int userId, UserCollection collection) {
+        boolean loaded = false;
+        try {
+            // The whole collection together with its revision
+            Delta snapshot = delegate.changes(userId, -1);
+            CollectionInfo info = snapshot == null ? null : delegate.info(userId);
+            if (info != null) {
+                int size;
+                synchronized (collection) {
+                    collection.apply(snapshot);
+                    collection.creationDate = info.getCreationDate();
+                    collection.lastModified = collection.pending.isEmpty()
+                            ? info.getLastModified()
+                            : LocalDateTime.now();
+                    collection.pending.forEach(change -> change.accept(collection));
+                    collection.pending = null;
+                    size = collection.elements.size();
+                    loaded = !collection.evicted;
+                }
+                account(collection, size);
+            }
+        } finally {
+            if (!loaded) {
+                synchronized (users) {
+                    users.remove(userId, collection);
+                }
+            }
+            collection.ready.complete(loaded);
+        }
+    }
+
+    // Bring the collection up to the notified revision. Notifications queued behind the first one
+    // find the collection up to date already. A statement takes consecutive revisions of its user, so when
+    // it was made on one of our connections and starts right after the cached revision, nothing else is
+    // in between and the change is applied by the thread that made it. Only then the query is skipped.
+    private void refresh(int userId, UserCollection collection, long revision, int ownElements) {
+        long since;
+        synchronized (collection) {
+            if (collection.evicted || collection.pending != null || collection.revision >= revision) {
+                return;
+            }
+            if (ownElements > 0 && collection.revision == revision - ownElements) {
+                collection.revision = revision;
+                return;
+            }
+            since = collection.revision;
+        }
+        Delta delta = delegate.changes(userId, since);
+        if (delta == null) {
+            invalidate(userId);
+            return;
+        }
+        change(userId, changed -> changed.apply(delta));
+    }
+
+    private CollectionElement added(int userId, CollectionElement stored) {
+        if (stored == null) {
+            // The addition may still have been committed
+            invalidate(userId);
+            return null;
+        }
+        change(userId, collection -> collection.add(stored));
+        return stored;
+    }
+
+    private boolean removed(int userId, CollectionElement element, boolean success) {
+        if (!success) {
+            // The removal may still have been committed
+            invalidate(userId);
+            return false;
+        }
+        // Same condition as the database applies
+        change(userId, collection -> collection.elements.removeEqual(element).forEach(collection.spatial::remove));
+        return true;
+    }
+
+    // Apply a committed change to the collection of the user if it is cached
+    private void change(int userId, Consumer<UserCollection> change) {
+        UserCollection collection;
+        synchronized (users) {
+            collection = users.get(userId);
+        }
+        if (collection == null) {
+            return;
+        }
+        int delta;
+        synchronized (collection) {
+            if (collection.pending != null) {
+                collection.pending.add(change);
+                return;
+            }
+            int before = collection.elements.size();
+            change.accept(collection);
+            collection.lastModified = LocalDateTime.now();
+            delta = collection.elements.size() - before;
+        }
+        account(collection, delta);
+    }
+
+    private void invalidate(int userId) {
+        synchronized (users) {
+            UserCollection collection = users.remove(userId);
+            if (collection != null) {
+                evict(collection);
+            }
+        }
+    }
+
+    // Count the elements of the collection and evict the least recently used users over the budget
+    private void account(UserCollection collection, long delta) {
+        synchronized (users) {
+            if (collection.evicted) {
+                return;
+            }
+            collection.accounted += delta;
+            cachedElements += delta;
+
+            Iterator<UserCollection> eldest = users.values().iterator();
+            while ((cachedElements > maxElements || users.size() > maxUsers) && eldest.hasNext()) {
+                UserCollection victim = eldest.next();
+                // A collection evicted while loading is not cached, its readers go to the database
+                eldest.remove();
+                evict(victim);
+            }
+        }
+    }
+
+    // Called with the collection locked
+    private static List<CollectionElement> elementsById(UserCollection collection, long[] ids) {
+        List<CollectionElement> elements = new ArrayList<>(ids.length);
+        for (long id : ids) {
+            elements.add(collection.elements.get(id));
+        }
+        return elements;
+    }
+
+    // Called with the users map locked
+    private void evict(UserCollection collection) {
+        collection.evicted = true;
+        cachedElements -= collection.accounted;
+        collection.accounted = 0;
+    }
+}
@@ -0,0 +1,85 @@
+package db;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+// Listens for change notifications of PostgreSQLDatabase on a connection of its own
+// and passes them to the subscriber, reconnecting when the connection is lost.
+public class ChangeListener implements AutoCloseable {
+    private static final int POLL_TIMEOUT = 500;
+    private static final long MIN_BACKOFF = 100;
+    private static final long MAX_BACKOFF = 30_000;
+
+    private final ConnectionPool pool;
+    private final ChangeSubscriber subscriber;
+    private final Thread thread;
+    private volatile boolean closed = false;
+
+    public ChangeListener(ConnectionPool pool, ChangeSubscriber subscriber) {
+        this.pool = pool;
+        this.subscriber = subscriber;
+        thread = new Thread(this::run, "change-listener");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        closed = true;
+        thread.interrupt();
+        thread.join(POLL_TIMEOUT * 2);
+    }
+
+    private void run() {
+        long backoff = MIN_BACKOFF;
+        while (!closed) {
+            try (Connection connection = pool.connect()) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("LISTEN " + PostgreSQLDatabase.CHANGES_CHANNEL);
+                }
+                // Anything changed before listening started is unknown
+                subscriber.reset();
+                backoff = MIN_BACKOFF;
+                listen(connection.unwrap(PGConnection.class));
+            } catch (SQLException e) {
+                if (closed) {
+                    return;
+                }
+                System.out.println("Change notifications lost, reconnecting in " + backoff + " ms");
+                e.printStackTrace();
+                // Changes made while disconnected are never notified
+                subscriber.reset();
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ignored) {
+                    return;
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF);
+            }
+        }
+    }
+
+    private void listen(PGConnection connection) throws SQLException {
+        while (!closed) {
+            PGNotification[] notifications = connection.getNotifications(POLL_TIMEOUT);
+            if (notifications == null) {
+                continue;
+            }
+            for (PGNotification notification : notifications) {
+                String payload = notification.getParameter();
+                String[] parts = payload.split(":");
+                try {
+                    subscriber.changed(Integer.parseInt(parts[0]), Long.parseLong(parts[1]),
+                            parts.length > 2 ? Integer.parseInt(parts[2]) : -1,
+                            pool.isOwnBackend(notification.getPID()));
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    System.out.println("Malformed change notification '" + payload + "'");
+                }
+            }
+        }
+    }
+}
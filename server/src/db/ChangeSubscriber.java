@@ -0,0 +1,11 @@
+package db;
+
+// Receives notifications about collections changed in the database, possibly by other servers
+public interface ChangeSubscriber {
+    // The collection of the user reached the revision with a statement that changed the number of elements,
+    // own if a connection of this server made it. The number is negative if it is unknown.
+    void changed(int userId, long revision, int elements, boolean own);
+
+    // Notifications may have been missed, nothing known about any collection can be trusted
+    void reset();
+}
@@ -0,0 +1,189 @@
+package db;
+
+import org.postgresql.PGConnection;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ConnectionPool implements AutoCloseable {
+    // Connections idle for less than this are handed out without a validation round trip
+    private static final long VALIDATION_INTERVAL = 5_000;
+
+    private final String uri;
+    private final Properties properties = new Properties();
+    private final int minSize;
+    private final long acquireTimeout;
+    private final long idleTimeout;
+
+    private final Deque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+    private final Semaphore permits;
+    private final AtomicInteger size = new AtomicInteger();
+    // Server processes of the pooled PostgreSQL connections, they tell own notifications from others
+    private final Set<Integer> backends = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService evictor;
+    private volatile boolean closed = false;
+
+    public ConnectionPool(String uri, String user, String password,
+                          int minSize, int maxSize, long acquireTimeout, long idleTimeout) throws SQLException {
+        if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size " + minSize + ".." + maxSize);
+        }
+        this.uri = uri;
+        properties.setProperty("user", user);
+        properties.setProperty("password", password);
+        // PostgreSQL driver: prepare statements on the server on their first execution and send batched inserts
+        // as multi-row inserts, other drivers ignore these
+        properties.setProperty("prepareThreshold", "1");
+        properties.setProperty("reWriteBatchedInserts", "true");
+        this.minSize = minSize;
+        this.acquireTimeout = acquireTimeout;
+        this.idleTimeout = idleTimeout;
+        this.permits = new Semaphore(maxSize, true);
+
+        for (int i = 0; i < minSize; i++) {
+            idle.push(open());
+        }
+
+        evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "connection-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1_000, idleTimeout / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    // Wait up to the acquire timeout for a free connection
+    public PooledConnection acquire() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        try {
+            if (!permits.tryAcquire(acquireTimeout, TimeUnit.MILLISECONDS)) {
+                throw new SQLTransientConnectionException(
+                        "No database connection available in " + acquireTimeout + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientConnectionException("Interrupted while waiting for a connection", e);
+        }
+
+        try {
+            PooledConnection connection;
+            while ((connection = idle.poll()) != null) {
+                if (isUsable(connection)) {
+                    return connection;
+                }
+                discard(connection);
+            }
+            return open();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    void release(PooledConnection connection) {
+        try {
+            Connection raw = connection.getConnection();
+            if (closed || raw.isClosed()) {
+                discard(connection);
+            } else {
+                if (!raw.getAutoCommit()) {
+                    raw.rollback();
+                    raw.setAutoCommit(true);
+                }
+                idle.push(connection);
+            }
+        } catch (SQLException e) {
+            discard(connection);
+        } finally {
+            permits.release();
+        }
+    }
+
+    // Open a connection outside of the pool for a long running session, the caller closes it
+    public Connection connect() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        return DriverManager.getConnection(uri, properties);
+    }
+
+    public int getSize() {
+        return size.get();
+    }
+
+    // True if the process id belongs to a pooled connection, so that this server made the change it notified
+    public boolean isOwnBackend(int pid) {
+        return backends.contains(pid);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        evictor.shutdownNow();
+        PooledConnection connection;
+        while ((connection = idle.poll()) != null) {
+            discard(connection);
+        }
+    }
+
+    private PooledConnection open() throws SQLException {
+        Connection raw = DriverManager.getConnection(uri, properties);
+        PooledConnection connection = new PooledConnection(this, raw, backendPid(raw));
+        if (connection.getBackendPid() != 0) {
+            backends.add(connection.getBackendPid());
+        }
+        size.incrementAndGet();
+        return connection;
+    }
+
+    private boolean isUsable(PooledConnection connection) {
+        if (System.currentTimeMillis() - connection.getLastUsed() < VALIDATION_INTERVAL) {
+            return true;
+        }
+        try {
+            return connection.getConnection().isValid(2);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void discard(PooledConnection connection) {
+        backends.remove(connection.getBackendPid());
+        size.decrementAndGet();
+        connection.closePhysically();
+    }
+
+    // Process id of the server of a PostgreSQL connection, 0 for other drivers
+    private static int backendPid(Connection connection) {
+        try {
+            return connection.isWrapperFor(PGConnection.class)
+                    ? connection.unwrap(PGConnection.class).getBackendPID()
+                    : 0;
+        } catch (SQLException e) {
+            return 0;
+        }
+    }
+
+    // Close connections that were idle for too long, keeping at least the minimum size
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        Iterator<PooledConnection> iterator = idle.descendingIterator();
+        while (iterator.hasNext() && size.get() > minSize) {
+            PooledConnection connection = iterator.next();
+            if (now - connection.getLastUsed() >= idleTimeout && idle.removeLastOccurrence(connection)) {
+                discard(connection);
+            }
+        }
+    }
+}
@@ -1,19 +1,94 @@
 package db;
 
+import collection.Area;
 import collection.CollectionElement;
 import collection.CollectionInfo;
+import collection.Cursor;
+import collection.Delta;
+import collection.ElementFilter;
+import collection.Page;
+import collection.Position;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public interface Database extends AutoCloseable {
+    // Elements of the user ordered by size and id
     List<CollectionElement> show(int user_id);
+    // Up to limit elements following the cursor, from the start if it is null
+    Page show(int userId, Cursor after, int limit);
     CollectionInfo info(int user_id);
-    void addElement(CollectionElement element, int user_id);
-    void removeElement(CollectionElement element, int user_id);
-    void removeFirst(int userId);
-    void removeLast(int userId);
+    // Elements of the user within the area ordered by size and id
+    List<CollectionElement> within(int userId, Area area);
+    // Up to count elements of the user closest to the position, the closest first
+    List<CollectionElement> nearest(int userId, Position position, int count);
+    // Elements of the user matching the filter ordered by size and id
+    List<CollectionElement> filter(int userId, ElementFilter filter);
+    // Elements added and ids of elements removed after the revision, every change bumps the revision
+    Delta changes(int userId, long since);
+    // Return the element as it was stored, with its id, or null if it was not stored
+    CollectionElement addElement(CollectionElement element, int user_id);
+    // Store all elements or none of them, return them as stored with their ids, or null if they were not stored
+    List<CollectionElement> addElements(List<CollectionElement> elements, int userId);
+    // Return false if the database failed
+    boolean removeElement(CollectionElement element, int user_id);
+    // Remove up to count elements from the end of the collection ordered by size and id, return removed ones
+    List<CollectionElement> removeFirst(int userId, int count);
+    // Remove up to count elements from the start of the collection ordered by size and id, return removed ones
+    List<CollectionElement> removeLast(int userId, int count);
     void addUser(String email, String userPassword);
     boolean checkUser(String email, String userPassword);
     int getUserId(String email, String userPassword);
     boolean consistsUser(String email);
+
+    // Same as addElement and removeElement, but the result may come later from another thread.
+    // Databases that commit changes in groups return at once instead of holding the caller until the commit.
+    default CompletableFuture<CollectionElement> submitAdd(CollectionElement element, int userId) {
+        return CompletableFuture.completedFuture(addElement(element, userId));
+    }
+
+    default CompletableFuture<Boolean> submitRemove(CollectionElement element, int userId) {
+        return CompletableFuture.completedFuture(removeElement(element, userId));
+    }
+
+    // Hint that the user has just logged in and will soon work with the collection
+    default void warmUp(int userId) {
+    }
+
+    // Operations that authenticate the user by email and password hash themselves.
+    // Return false if the user could not be authenticated.
+
+    default boolean addElement(CollectionElement element, String email, String passwordHash) {
+        int userId = getUserId(email, passwordHash);
+        if (userId < 0) return false;
+        addElement(element, userId);
+        return true;
+    }
+
+    default boolean addElements(List<CollectionElement> elements, String email, String passwordHash) {
+        int userId = getUserId(email, passwordHash);
+        if (userId < 0) return false;
+        return addElements(elements, userId) != null;
+    }
+
+    default boolean removeElement(CollectionElement element, String email, String passwordHash) {
+        int userId = getUserId(email, passwordHash);
+        if (userId < 0) return false;
+        removeElement(element, userId);
+        return true;
+    }
+
+    default boolean removeFirst(String email, String passwordHash, int count) {
+        int userId = getUserId(email, passwordHash);
+        if (userId < 0) return false;
+        removeFirst(userId, count);
+        return true;
+    }
+
+    default boolean removeLast(String email, String passwordHash, int count) {
+        int userId = getUserId(email, passwordHash);
+        if (userId < 0) return false;
+        removeLast(userId, count);
+        return true;
+    }
 }
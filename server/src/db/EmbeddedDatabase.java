@@ -0,0 +1,1145 @@
+package db;
+
+import collection.Area;
+import collection.CollectionElement;
+import collection.CollectionInfo;
+import collection.CollectionStats;
+import collection.Cursor;
+import collection.Delta;
+import collection.ElementFilter;
+import collection.Page;
+import collection.Position;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+// Database kept in memory for deployments without PostgreSQL. Changes are appended to a write-ahead log
+// before they are applied and acknowledged once the log is forced to disk.
+// The directory holds snapshot-<n>.dat with the state at the start of wal-<n>.log, and the logs after it.
+// Recovery loads the latest snapshot and replays the logs from its number on.
+// Mail given up on is appended to dead-mail.log without its text.
+public class EmbeddedDatabase implements Database, MailQueue {
+    private static final int CHANGES_KEPT = 1000;
+    private static final int SNAPSHOT_MAGIC = 0x4C375344;
+    // Version 1 has no mail queue, versions before 3 have no modification times of collections
+    private static final int SNAPSHOT_VERSION = 3;
+    private static final Pattern FILE_NAME = Pattern.compile("(snapshot|wal)-(\\d+)\\.(dat|log)");
+
+    private static final byte RECORD_USER = 1;
+    private static final byte RECORD_ADD = 2;
+    private static final byte RECORD_REMOVE = 3;
+    private static final byte RECORD_ADD_ALL = 4;
+    private static final byte RECORD_REGISTER = 5;
+    private static final byte RECORD_MAIL_RETRY = 6;
+    private static final byte RECORD_MAIL_DONE = 7;
+
+    private static final Comparator<CollectionElement> ORDER = Comparator
+            .comparingDouble(CollectionElement::getSize)
+            .thenComparingLong(CollectionElement::getId);
+
+    private static class Change {
+        private final long revision;
+        private final long elementId;
+        private final boolean added;
+
+        private Change(long revision, long elementId, boolean added) {
+            this.revision = revision;
+            this.elementId = elementId;
+            this.added = added;
+        }
+    }
+
+    private static class User {
+        private final int id;
+        private final String email;
+        private final String passwordHash;
+        private final LocalDateTime created;
+        private final NavigableSet<CollectionElement> elements = new TreeSet<>(ORDER);
+        private final Map<Long, CollectionElement> byId = new HashMap<>();
+        private final ArrayDeque<Change> changes = new ArrayDeque<>();
+        private final CollectionStats stats = new CollectionStats();
+        private final SpatialIndex spatial = new SpatialIndex();
+        private long revision = 0;
+        private long compactedRevision = 0;
+
+        private User(int id, String email, String passwordHash, LocalDateTime created) {
+            this.id = id;
+            this.email = email;
+            this.passwordHash = passwordHash;
+            this.created = created;
+        }
+
+        private void add(CollectionElement element) {
+            elements.add(element);
+            byId.put(element.getId(), element);
+            stats.added(element);
+            spatial.add(element);
+            record(element.getId(), true);
+        }
+
+        private void remove(long elementId) {
+            CollectionElement element = byId.remove(elementId);
+            if (element != null) {
+                elements.remove(element);
+                stats.removed(element);
+                spatial.remove(element);
+                record(elementId, false);
+            }
+        }
+
+        private void record(long elementId, boolean added) {
+            changes.addLast(new Change(++revision, elementId, added));
+            if (changes.size() > CHANGES_KEPT) {
+                compactedRevision = changes.removeFirst().revision;
+            }
+        }
+    }
+
+    private static class QueuedMail {
+        private Mail mail;
+        // Epoch milliseconds, claims move it forward without logging
+        private long nextAttempt;
+
+        private QueuedMail(Mail mail, long nextAttempt) {
+            this.mail = mail;
+            this.nextAttempt = nextAttempt;
+        }
+    }
+
+    private final Path directory;
+    private final long checkpointBytes;
+    private final long checkpointInterval;
+
+    // Appending to the log and applying the change happen under the write lock, so both see one order
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Integer, User> users = new HashMap<>();
+    private final Map<String, User> usersByEmail = new HashMap<>();
+    private int lastUserId = 0;
+    private long lastElementId = 0;
+    private final Map<Long, QueuedMail> mailQueue = new LinkedHashMap<>();
+    private long lastMailId = 0;
+    // Time of the changes in the log being replayed
+    private LocalDateTime replayTime;
+    private ByteBuffer record = ByteBuffer.allocate(0x1000);
+
+    private WriteAheadLog log;
+    // Set once forcing the log fails. Changes appended before are visible in memory but may be lost,
+    // so no more changes are appended and no snapshot is written until a restart recovers from the logs.
+    private volatile boolean failed = false;
+    private long sequence;
+    private long lastCheckpoint;
+    private final ScheduledExecutorService checkpointer = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "embedded-checkpoint");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // A checkpoint starts once the log grows over checkpointBytes or checkpointInterval passes with changes
+    public EmbeddedDatabase(Path directory, long checkpointBytes, long checkpointInterval) throws IOException {
+        this.directory = directory;
+        this.checkpointBytes = checkpointBytes;
+        this.checkpointInterval = checkpointInterval;
+        recover();
+        checkpointer.scheduleWithFixedDelay(this::checkpointIfNeeded, 1, 1, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public List<CollectionElement> show(int userId) {
+        System.out.println("Request 'show' from user #" + userId);
+        lock.readLock().lock();
+        try {
+            User user = users.get(userId);
+            return user == null ? new ArrayList<>() : new ArrayList<>(user.elements);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Page show(int userId, Cursor after, int limit) {
+        System.out.println("Request 'show' of " + limit + " elements after " + after + " from user #" + userId);
+        lock.readLock().lock();
+        try {
+            User user = users.get(userId);
+            if (user == null) {
+                return new Page(new ArrayList<>(), null);
+            }
+            NavigableSet<CollectionElement> tail = after == null
+                    ? user.elements
+                    : user.elements.tailSet(
+                            new CollectionElement("", after.getSize(), 0, 0).withId(after.getId()), false);
+            List<CollectionElement> elements = new ArrayList<>();
+            Iterator<CollectionElement> iterator = tail.iterator();
+            while (elements.size() < limit && iterator.hasNext()) {
+                elements.add(iterator.next());
+            }
+            return new Page(elements, iterator.hasNext() ? Cursor.after(elements.get(limit - 1)) : null);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public CollectionInfo info(int userId) {
+        System.out.println("Request 'info' from user #" + userId);
+        lock.readLock().lock();
+        try {
+            User user = users.get(userId);
+            return user == null
+                    ? new CollectionInfo(LocalDateTime.MIN, 0)
+                    : user.stats.info(user.created, user.elements);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<CollectionElement> within(int userId, Area area) {
+        System.out.println("Request 'within' " + area + " from user #" + userId);
+        lock.readLock().lock();
+        try {
+            User user = users.get(userId);
+            if (user == null) {
+                return new ArrayList<>();
+            }
+            List<CollectionElement> elements = elementsById(user, user.spatial.within(area));
+            elements.sort(ORDER);
+            return elements;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<CollectionElement> nearest(int userId, Position position, int count) {
+        System.out.println("Request 'nearest' " + count + " to " + position + " from user #" + userId);
+        lock.readLock().lock();
+        try {
+            User user = users.get(userId);
+            return user == null ? new ArrayList<>() : elementsById(user, user.spatial.nearest(position, count));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<CollectionElement> filter(int userId, ElementFilter filter) {
+        System.out.println("Request 'filter' " + filter + " from user #" + userId);
+        lock.readLock().lock();
+        try {
+            User user = users.get(userId);
+            List<CollectionElement> elements = new ArrayList<>();
+            if (user != null) {
+                for (CollectionElement element : user.elements) {
+                    if (filter.test(element)) {
+                        elements.add(element);
+                    }
+                }
+            }
+            return elements;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Delta changes(int userId, long since) {
+        System.out.println("Request 'changes' since revision " + since + " from user #" + userId);
+        lock.readLock().lock();
+        try {
+            User user = users.get(userId);
+            if (user == null) {
+                return null;
+            }
+            if (since < user.compactedRevision || since > user.revision) {
+                return new Delta(user.revision, true, new ArrayList<>(user.elements), new long[0]);
+            }
+            // Only the last change of every element matters
+            Map<Long, Boolean> last = new LinkedHashMap<>();
+            Iterator<Change> iterator = user.changes.descendingIterator();
+            while (iterator.hasNext()) {
+                Change change = iterator.next();
+                if (change.revision <= since) {
+                    break;
+                }
+                last.putIfAbsent(change.elementId, change.added);
+            }
+            List<CollectionElement> added = new ArrayList<>();
+            List<Long> removed = new ArrayList<>();
+            last.forEach((elementId, isAdded) -> {
+                CollectionElement element = user.byId.get(elementId);
+                if (isAdded && element != null) {
+                    added.add(element);
+                } else {
+                    removed.add(elementId);
+                }
+            });
+            return new Delta(user.revision, false, added, removed.stream().mapToLong(Long::longValue).toArray());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public CollectionElement addElement(CollectionElement element, int userId) {
+        System.out.println("Request 'add' from user #" + userId);
+        WriteAheadLog target;
+        long position;
+        CollectionElement stored;
+        lock.writeLock().lock();
+        try {
+            User user = users.get(userId);
+            if (user == null) {
+                System.out.println("Error");
+                return null;
+            }
+            stored = element.withId(lastElementId + 1);
+            record.clear();
+            record.put(RECORD_ADD);
+            record.putInt(userId);
+            putElement(stored);
+            target = log;
+            position = append();
+            lastElementId = stored.getId();
+            user.add(stored);
+            user.stats.changed(user.elements, LocalDateTime.now());
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Error");
+            return null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return sync(target, position) ? stored : null;
+    }
+
+    // One log record for the whole batch, so a crash keeps all of the elements or none
+    @Override
+    public List<CollectionElement> addElements(List<CollectionElement> elements, int userId) {
+        System.out.println("Request 'import' of " + elements.size() + " elements from user #" + userId);
+        WriteAheadLog target;
+        long position;
+        List<CollectionElement> stored = new ArrayList<>(elements.size());
+        lock.writeLock().lock();
+        try {
+            User user = users.get(userId);
+            if (user == null) {
+                System.out.println("Error");
+                return null;
+            }
+            record.clear();
+            ensureRecordCapacity(9);
+            record.put(RECORD_ADD_ALL);
+            record.putInt(userId);
+            record.putInt(elements.size());
+            for (CollectionElement element : elements) {
+                CollectionElement added = element.withId(lastElementId + 1 + stored.size());
+                putElement(added);
+                stored.add(added);
+            }
+            target = log;
+            position = append();
+            lastElementId += stored.size();
+            stored.forEach(user::add);
+            user.stats.changed(user.elements, LocalDateTime.now());
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Error");
+            return null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return sync(target, position) ? stored : null;
+    }
+
+    // Same condition as PostgreSQLDatabase: name, size and position of the element
+    @Override
+    public boolean removeElement(CollectionElement element, int userId) {
+        System.out.println("Request 'remove' from user #" + userId);
+        return remove(userId, user -> {
+            List<Long> ids = new ArrayList<>();
+            for (CollectionElement stored : user.elements.subSet(
+                    element.withId(Long.MIN_VALUE), true, element.withId(Long.MAX_VALUE), true)) {
+                if (Objects.equals(stored.getName(), element.getName())
+                        && stored.getPosition().getX() == element.getPosition().getX()
+                        && stored.getPosition().getY() == element.getPosition().getY()) {
+                    ids.add(stored.getId());
+                }
+            }
+            return ids;
+        }) != null;
+    }
+
+    @Override
+    public List<CollectionElement> removeFirst(int userId, int count) {
+        System.out.println("Request 'remove_first' from user #" + userId);
+        return removeOrdered(userId, count, true);
+    }
+
+    @Override
+    public List<CollectionElement> removeLast(int userId, int count) {
+        System.out.println("Request 'remove_last' from user #" + userId);
+        return removeOrdered(userId, count, false);
+    }
+
+    // remove_first takes the largest elements, remove_last the smallest ones, as PostgreSQLDatabase does
+    private List<CollectionElement> removeOrdered(int userId, int count, boolean largest) {
+        List<CollectionElement> result = new ArrayList<>();
+        List<Long> ids = remove(userId, user -> {
+            Iterator<CollectionElement> iterator = largest
+                    ? user.elements.descendingIterator()
+                    : user.elements.iterator();
+            List<Long> selected = new ArrayList<>();
+            while (selected.size() < count && iterator.hasNext()) {
+                CollectionElement element = iterator.next();
+                result.add(element);
+                selected.add(element.getId());
+            }
+            return selected;
+        });
+        if (ids == null) {
+            return new ArrayList<>();
+        }
+        result.sort(CollectionElement::compareTo);
+        return result;
+    }
+
+    // Log and apply the removal of the selected elements, return their ids or null on failure
+    private List<Long> remove(int userId, Function<User, List<Long>> selector) {
+        WriteAheadLog target;
+        long position;
+        List<Long> ids;
+        lock.writeLock().lock();
+        try {
+            User user = users.get(userId);
+            if (user == null) {
+                System.out.println("Error");
+                return null;
+            }
+            ids = selector.apply(user);
+            if (ids.isEmpty()) {
+                System.out.println("Success");
+                return ids;
+            }
+            record.clear();
+            ensureRecordCapacity(9 + 8 * ids.size());
+            record.put(RECORD_REMOVE);
+            record.putInt(userId);
+            record.putInt(ids.size());
+            ids.forEach(record::putLong);
+            target = log;
+            position = append();
+            ids.forEach(user::remove);
+            user.stats.changed(user.elements, LocalDateTime.now());
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Error");
+            return null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return sync(target, position) ? ids : null;
+    }
+
+    @Override
+    public void addUser(String email, String userPassword) {
+        System.out.println("Request 'register' from e-mail " + email);
+        WriteAheadLog target;
+        long position;
+        lock.writeLock().lock();
+        try {
+            if (usersByEmail.containsKey(email)) {
+                System.out.println("Error");
+                return;
+            }
+            User user = new User(lastUserId + 1, email, userPassword, LocalDateTime.now());
+            record.clear();
+            record.put(RECORD_USER);
+            record.putInt(user.id);
+            putString(user.email);
+            putString(user.passwordHash);
+            putDateTime(user.created);
+            target = log;
+            position = append();
+            applyUser(user);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Error");
+            return;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        sync(target, position);
+    }
+
+    @Override
+    public boolean addUser(String email, String passwordHash, Mail mail) {
+        System.out.println("Request 'register' from e-mail " + email);
+        WriteAheadLog target;
+        long position;
+        lock.writeLock().lock();
+        try {
+            if (usersByEmail.containsKey(email)) {
+                System.out.println("Already registered");
+                return false;
+            }
+            User user = new User(lastUserId + 1, email, passwordHash, LocalDateTime.now());
+            Mail queued = new Mail(lastMailId + 1, mail.getRecipient(), mail.getSubject(), mail.getText(),
+                    mail.getCreated(), 0);
+            // One record, so the user never exists without the mail with the password
+            record.clear();
+            record.put(RECORD_REGISTER);
+            record.putInt(user.id);
+            putString(user.email);
+            putString(user.passwordHash);
+            putDateTime(user.created);
+            putMail(queued);
+            target = log;
+            position = append();
+            applyUser(user);
+            applyMail(queued, 0);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Error");
+            return false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return sync(target, position);
+    }
+
+    @Override
+    public List<Mail> claimMail(int limit, long lease) {
+        List<Mail> claimed = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        lock.writeLock().lock();
+        try {
+            for (QueuedMail queued : mailQueue.values()) {
+                if (claimed.size() == limit) {
+                    break;
+                }
+                if (queued.nextAttempt <= now) {
+                    Mail mail = queued.mail;
+                    queued.mail = new Mail(mail.getId(), mail.getRecipient(), mail.getSubject(), mail.getText(),
+                            mail.getCreated(), mail.getAttempts() + 1);
+                    queued.nextAttempt = now + lease;
+                    claimed.add(queued.mail);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return claimed;
+    }
+
+    @Override
+    public void mailSent(Mail mail) {
+        finishMail(mail);
+    }
+
+    @Override
+    public void mailFailed(Mail mail, long delay, String error) {
+        long nextAttempt = System.currentTimeMillis() + delay;
+        WriteAheadLog target;
+        long position;
+        lock.writeLock().lock();
+        try {
+            QueuedMail queued = mailQueue.get(mail.getId());
+            if (queued == null) {
+                return;
+            }
+            record.clear();
+            record.put(RECORD_MAIL_RETRY);
+            record.putLong(mail.getId());
+            record.putInt(mail.getAttempts());
+            record.putLong(nextAttempt);
+            target = log;
+            position = append();
+            queued.nextAttempt = nextAttempt;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        sync(target, position);
+    }
+
+    @Override
+    public void mailDead(Mail mail, String error) {
+        String line = LocalDateTime.now() + "\t#" + mail.getId() + "\t" + mail.getRecipient() + "\t"
+                + mail.getSubject() + "\tcreated " + mail.getCreated() + "\t" + mail.getAttempts()
+                + " attempts\t" + error.replaceAll("\\s+", " ") + System.lineSeparator();
+        try {
+            Files.write(directory.resolve("dead-mail.log"), line.getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        finishMail(mail);
+    }
+
+    private void finishMail(Mail mail) {
+        WriteAheadLog target;
+        long position;
+        lock.writeLock().lock();
+        try {
+            if (!mailQueue.containsKey(mail.getId())) {
+                return;
+            }
+            record.clear();
+            record.put(RECORD_MAIL_DONE);
+            record.putLong(mail.getId());
+            target = log;
+            position = append();
+            mailQueue.remove(mail.getId());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        sync(target, position);
+    }
+
+    @Override
+    public boolean checkUser(String email, String userPassword) {
+        System.out.println("Check for user " + email);
+        return getUser(email, userPassword) != null;
+    }
+
+    @Override
+    public int getUserId(String email, String passwordHash) {
+        System.out.println("Check user id for " + email);
+        User user = getUser(email, passwordHash);
+        return user == null ? -1 : user.id;
+    }
+
+    @Override
+    public boolean consistsUser(String email) {
+        System.out.println("Check for user existence " + email);
+        lock.readLock().lock();
+        try {
+            return usersByEmail.containsKey(email);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private User getUser(String email, String passwordHash) {
+        lock.readLock().lock();
+        try {
+            User user = usersByEmail.get(email);
+            return user != null && user.passwordHash.equals(passwordHash) ? user : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        checkpointer.shutdown();
+        checkpointer.awaitTermination(10, TimeUnit.SECONDS);
+        lock.writeLock().lock();
+        try {
+            log.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Called with the write lock held, the record buffer holds the data
+    private long append() throws IOException {
+        if (failed) {
+            throw new IOException("Writing the log failed, changes are accepted again after a restart");
+        }
+        record.flip();
+        return log.append(record);
+    }
+
+    // Wait until the change is on disk, it is already visible to readers.
+    // The change cannot be taken back once others may have seen it, so a failure stops all writes instead.
+    private boolean sync(WriteAheadLog target, long position) {
+        try {
+            target.sync(position);
+            System.out.println("Success");
+            return true;
+        } catch (IOException | UncheckedIOException e) {
+            e.printStackTrace();
+            failed = true;
+            System.out.println("Error");
+            return false;
+        }
+    }
+
+    private void applyUser(User user) {
+        users.put(user.id, user);
+        usersByEmail.put(user.email, user);
+        lastUserId = Math.max(lastUserId, user.id);
+    }
+
+    private void applyMail(Mail mail, long nextAttempt) {
+        mailQueue.put(mail.getId(), new QueuedMail(mail, nextAttempt));
+        lastMailId = Math.max(lastMailId, mail.getId());
+    }
+
+    // Recovery
+
+    private void recover() throws IOException {
+        Files.createDirectories(directory);
+        long latestSnapshot = -1;
+        TreeSet<Long> logs = new TreeSet<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    // Snapshot that was being written when the server stopped
+                    Files.delete(file);
+                    continue;
+                }
+                Matcher matcher = FILE_NAME.matcher(name);
+                if (!matcher.matches()) {
+                    continue;
+                }
+                long number = Long.parseLong(matcher.group(2));
+                if (matcher.group(1).equals("snapshot")) {
+                    latestSnapshot = Math.max(latestSnapshot, number);
+                } else {
+                    logs.add(number);
+                }
+            }
+        }
+
+        if (latestSnapshot >= 0) {
+            readSnapshot(snapshotPath(latestSnapshot));
+        }
+        for (long number : logs.tailSet(Math.max(latestSnapshot, 0))) {
+            // Records have no time, changes replayed from a log were made before it was last written
+            replayTime = LocalDateTime.ofInstant(
+                    Files.getLastModifiedTime(logPath(number)).toInstant(), ZoneId.systemDefault());
+            WriteAheadLog.replay(logPath(number), this::replay);
+        }
+        System.out.println("Recovered " + users.size() + " users from " + directory);
+
+        // A log may end with a torn record, so writing continues in a new log after a fresh snapshot
+        sequence = Math.max(latestSnapshot, logs.isEmpty() ? 0 : logs.last()) + 1;
+        log = new WriteAheadLog(logPath(sequence));
+        writeSnapshot(sequence, copyState());
+        lastCheckpoint = System.currentTimeMillis();
+    }
+
+    private void replay(ByteBuffer data) {
+        byte type = data.get();
+        switch (type) {
+            case RECORD_USER: {
+                int id = data.getInt();
+                String email = getString(data);
+                String passwordHash = getString(data);
+                applyUser(new User(id, email, passwordHash, getDateTime(data)));
+                break;
+            }
+            case RECORD_ADD: {
+                User user = users.get(data.getInt());
+                CollectionElement element = getElement(data);
+                lastElementId = Math.max(lastElementId, element.getId());
+                if (user != null) {
+                    user.add(element);
+                }
+                replayed(user);
+                break;
+            }
+            case RECORD_ADD_ALL: {
+                User user = users.get(data.getInt());
+                int count = data.getInt();
+                for (int i = 0; i < count; i++) {
+                    CollectionElement element = getElement(data);
+                    lastElementId = Math.max(lastElementId, element.getId());
+                    if (user != null) {
+                        user.add(element);
+                    }
+                }
+                replayed(user);
+                break;
+            }
+            case RECORD_REGISTER: {
+                int id = data.getInt();
+                String email = getString(data);
+                String passwordHash = getString(data);
+                applyUser(new User(id, email, passwordHash, getDateTime(data)));
+                applyMail(getMail(data), 0);
+                break;
+            }
+            case RECORD_MAIL_RETRY: {
+                QueuedMail queued = mailQueue.get(data.getLong());
+                int attempts = data.getInt();
+                long nextAttempt = data.getLong();
+                if (queued != null) {
+                    Mail mail = queued.mail;
+                    queued.mail = new Mail(mail.getId(), mail.getRecipient(), mail.getSubject(), mail.getText(),
+                            mail.getCreated(), attempts);
+                    queued.nextAttempt = nextAttempt;
+                }
+                break;
+            }
+            case RECORD_MAIL_DONE:
+                mailQueue.remove(data.getLong());
+                break;
+            case RECORD_REMOVE: {
+                User user = users.get(data.getInt());
+                int count = data.getInt();
+                for (int i = 0; i < count; i++) {
+                    long id = data.getLong();
+                    if (user != null) {
+                        user.remove(id);
+                    }
+                }
+                replayed(user);
+                break;
+            }
+            default:
+                throw new IllegalStateException("Unknown log record " + type);
+        }
+    }
+
+    private void replayed(User user) {
+        if (user != null) {
+            user.stats.changed(user.elements, replayTime);
+        }
+    }
+
+    private static List<CollectionElement> elementsById(User user, long[] ids) {
+        List<CollectionElement> elements = new ArrayList<>(ids.length);
+        for (long id : ids) {
+            elements.add(user.byId.get(id));
+        }
+        return elements;
+    }
+
+    // Checkpoints
+
+    private static class UserState {
+        private final User user;
+        private final long revision;
+        private final LocalDateTime lastModified;
+        private final List<CollectionElement> elements;
+
+        private UserState(User user) {
+            this.user = user;
+            this.revision = user.revision;
+            this.lastModified = user.stats.getLastModified();
+            this.elements = new ArrayList<>(user.elements);
+        }
+    }
+
+    private static class State {
+        private final List<UserState> users = new ArrayList<>();
+        private final List<QueuedMail> mail = new ArrayList<>();
+    }
+
+    private void checkpointIfNeeded() {
+        long size;
+        lock.readLock().lock();
+        try {
+            size = log.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+        boolean due = size > 0 && System.currentTimeMillis() - lastCheckpoint >= checkpointInterval;
+        if (failed || size < checkpointBytes && !due) {
+            return;
+        }
+        try {
+            checkpoint();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (UncheckedIOException e) {
+            e.printStackTrace();
+            failed = true;
+        }
+    }
+
+    // Switch to a new log and write the state at the switch into a snapshot, then drop older files.
+    // Only copying the state stops writers, the snapshot is written while they go on.
+    private void checkpoint() throws IOException {
+        long number;
+        State state;
+        WriteAheadLog previous;
+        lock.writeLock().lock();
+        try {
+            number = sequence + 1;
+            WriteAheadLog next = new WriteAheadLog(logPath(number));
+            previous = log;
+            log = next;
+            sequence = number;
+            state = copyState();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        previous.close();
+        // The copy may hold changes whose sync failed meanwhile
+        if (failed) {
+            return;
+        }
+        writeSnapshot(number, state);
+        lastCheckpoint = System.currentTimeMillis();
+        System.out.println("Checkpoint " + number + " of " + state.users.size() + " users");
+    }
+
+    // Called with the lock held
+    private State copyState() {
+        State state = new State();
+        users.values().forEach(user -> state.users.add(new UserState(user)));
+        mailQueue.values().forEach(queued -> state.mail.add(new QueuedMail(queued.mail, queued.nextAttempt)));
+        return state;
+    }
+
+    private void writeSnapshot(long number, State state) throws IOException {
+        Path temporary = directory.resolve("snapshot-" + number + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile())) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file, 0x10000), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(state.users.size());
+            for (UserState userState : state.users) {
+                User user = userState.user;
+                out.writeInt(user.id);
+                out.writeUTF(user.email);
+                out.writeUTF(user.passwordHash);
+                writeDateTime(out, user.created);
+                out.writeLong(userState.revision);
+                out.writeBoolean(userState.lastModified != null);
+                if (userState.lastModified != null) {
+                    writeDateTime(out, userState.lastModified);
+                }
+                out.writeInt(userState.elements.size());
+                for (CollectionElement element : userState.elements) {
+                    out.writeLong(element.getId());
+                    out.writeBoolean(element.getName() != null);
+                    if (element.getName() != null) {
+                        out.writeUTF(element.getName());
+                    }
+                    out.writeDouble(element.getSize());
+                    out.writeDouble(element.getPosition().getX());
+                    out.writeDouble(element.getPosition().getY());
+                    writeDateTime(out, element.getCreationDate());
+                }
+            }
+            out.writeInt(state.mail.size());
+            for (QueuedMail queued : state.mail) {
+                Mail mail = queued.mail;
+                out.writeLong(mail.getId());
+                out.writeUTF(mail.getRecipient());
+                out.writeUTF(mail.getSubject());
+                byte[] text = mail.getText().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(text.length);
+                out.write(text);
+                writeDateTime(out, mail.getCreated());
+                out.writeInt(mail.getAttempts());
+                out.writeLong(queued.nextAttempt);
+            }
+            out.flush();
+            new DataOutputStream(file).writeLong(checked.getChecksum().getValue());
+            file.getChannel().force(true);
+        }
+        Files.move(temporary, snapshotPath(number), StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+
+        // The snapshot covers everything before its log
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Matcher matcher = FILE_NAME.matcher(file.getFileName().toString());
+                if (matcher.matches() && Long.parseLong(matcher.group(2)) < number) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    private void readSnapshot(Path path) throws IOException {
+        long expected;
+        long actual;
+        try (InputStream file = new BufferedInputStream(Files.newInputStream(path), 0x10000)) {
+            CheckedInputStream checked = new CheckedInputStream(file, new CRC32());
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Unknown snapshot format in " + path);
+            }
+            int version = in.readInt();
+            if (version < 1 || version > SNAPSHOT_VERSION) {
+                throw new IOException("Unknown snapshot version " + version + " in " + path);
+            }
+            int userCount = in.readInt();
+            for (int i = 0; i < userCount; i++) {
+                User user = new User(in.readInt(), in.readUTF(), in.readUTF(), readDateTime(in));
+                // Changes before the snapshot are not kept, clients asking for them get the whole collection
+                user.revision = in.readLong();
+                user.compactedRevision = user.revision;
+                LocalDateTime lastModified = version >= 3 && in.readBoolean() ? readDateTime(in) : null;
+                int elementCount = in.readInt();
+                for (int j = 0; j < elementCount; j++) {
+                    long id = in.readLong();
+                    String name = in.readBoolean() ? in.readUTF() : null;
+                    double size = in.readDouble();
+                    double x = in.readDouble();
+                    double y = in.readDouble();
+                    CollectionElement element = new CollectionElement(name, size, x, y)
+                            .withCreationDate(readDateTime(in))
+                            .withId(id);
+                    user.elements.add(element);
+                    user.byId.put(id, element);
+                    user.spatial.add(element);
+                    lastElementId = Math.max(lastElementId, id);
+                }
+                user.stats.reset(user.elements, lastModified);
+                applyUser(user);
+            }
+            int mailCount = version < 2 ? 0 : in.readInt();
+            for (int i = 0; i < mailCount; i++) {
+                long id = in.readLong();
+                String recipient = in.readUTF();
+                String subject = in.readUTF();
+                byte[] text = new byte[in.readInt()];
+                in.readFully(text);
+                Mail mail = new Mail(id, recipient, subject, new String(text, StandardCharsets.UTF_8),
+                        readDateTime(in), in.readInt());
+                applyMail(mail, in.readLong());
+            }
+            actual = checked.getChecksum().getValue();
+            expected = new DataInputStream(file).readLong();
+        }
+        if (actual != expected) {
+            throw new IOException("Snapshot " + path + " is corrupted");
+        }
+    }
+
+    // Make the rename durable, not every platform can open a directory
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ignored) {
+        }
+    }
+
+    private Path snapshotPath(long number) {
+        return directory.resolve("snapshot-" + number + ".dat");
+    }
+
+    private Path logPath(long number) {
+        return directory.resolve("wal-" + number + ".log");
+    }
+
+    private static void writeDateTime(DataOutputStream out, LocalDateTime dateTime) throws IOException {
+        out.writeLong(dateTime.toEpochSecond(ZoneOffset.UTC));
+        out.writeInt(dateTime.getNano());
+    }
+
+    private static LocalDateTime readDateTime(DataInputStream in) throws IOException {
+        long epochSecond = in.readLong();
+        return LocalDateTime.ofEpochSecond(epochSecond, in.readInt(), ZoneOffset.UTC);
+    }
+
+    // Log record encoding, called with the write lock held
+
+    private void putElement(CollectionElement element) {
+        ensureRecordCapacity(8);
+        record.putLong(element.getId());
+        putString(element.getName());
+        ensureRecordCapacity(36);
+        record.putDouble(element.getSize());
+        record.putDouble(element.getPosition().getX());
+        record.putDouble(element.getPosition().getY());
+        putDateTime(element.getCreationDate());
+    }
+
+    private void putString(String value) {
+        if (value == null) {
+            ensureRecordCapacity(4);
+            record.putInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ensureRecordCapacity(4 + bytes.length);
+        record.putInt(bytes.length);
+        record.put(bytes);
+    }
+
+    private void putDateTime(LocalDateTime dateTime) {
+        ensureRecordCapacity(12);
+        record.putLong(dateTime.toEpochSecond(ZoneOffset.UTC));
+        record.putInt(dateTime.getNano());
+    }
+
+    private void putMail(Mail mail) {
+        ensureRecordCapacity(8);
+        record.putLong(mail.getId());
+        putString(mail.getRecipient());
+        putString(mail.getSubject());
+        putString(mail.getText());
+        putDateTime(mail.getCreated());
+        ensureRecordCapacity(4);
+        record.putInt(mail.getAttempts());
+    }
+
+    private void ensureRecordCapacity(int bytes) {
+        if (record.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(record.capacity() * 2, record.position() + bytes));
+            record.flip();
+            larger.put(record);
+            record = larger;
+        }
+    }
+
+    private static CollectionElement getElement(ByteBuffer data) {
+        long id = data.getLong();
+        String name = getString(data);
+        double size = data.getDouble();
+        double x = data.getDouble();
+        double y = data.getDouble();
+        return new CollectionElement(name, size, x, y)
+                .withCreationDate(getDateTime(data))
+                .withId(id);
+    }
+
+    private static Mail getMail(ByteBuffer data) {
+        long id = data.getLong();
+        String recipient = getString(data);
+        String subject = getString(data);
+        String text = getString(data);
+        LocalDateTime created = getDateTime(data);
+        return new Mail(id, recipient, subject, text, created, data.getInt());
+    }
+
+    private static String getString(ByteBuffer data) {
+        int length = data.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        data.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static LocalDateTime getDateTime(ByteBuffer data) {
+        long epochSecond = data.getLong();
+        return LocalDateTime.ofEpochSecond(epochSecond, data.getInt(), ZoneOffset.UTC);
+    }
+}
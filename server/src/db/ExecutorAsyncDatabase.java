@@ -0,0 +1,179 @@
+package db;
+
+import collection.Area;
+import collection.CollectionElement;
+import collection.CollectionInfo;
+import collection.Cursor;
+import collection.Delta;
+import collection.ElementFilter;
+import collection.Page;
+import collection.Position;
+
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+// Runs a blocking Database on its own bounded pool of threads.
+// With as many threads as pooled connections no thread waits for a connection,
+// and requests over the queue depth are rejected instead of piling up.
+// Additions and removals hold a thread only until they are submitted, so changes committed in groups
+// are not limited by the number of threads.
+public class ExecutorAsyncDatabase implements AsyncDatabase {
+    private final Database database;
+    private final ThreadPoolExecutor executor;
+
+    public ExecutorAsyncDatabase(Database database, int threads, int queueDepth) {
+        this.database = database;
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueDepth),
+                task -> {
+                    Thread thread = new Thread(task, "db-" + threadNumber.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @Override
+    public CompletableFuture<List<CollectionElement>> show(int userId) {
+        return submit(() -> database.show(userId));
+    }
+
+    @Override
+    public CompletableFuture<Page> show(int userId, Cursor after, int limit) {
+        return submit(() -> database.show(userId, after, limit));
+    }
+
+    @Override
+    public CompletableFuture<CollectionInfo> info(int userId) {
+        return submit(() -> database.info(userId));
+    }
+
+    @Override
+    public CompletableFuture<List<CollectionElement>> within(int userId, Area area) {
+        return submit(() -> database.within(userId, area));
+    }
+
+    @Override
+    public CompletableFuture<List<CollectionElement>> nearest(int userId, Position position, int count) {
+        return submit(() -> database.nearest(userId, position, count));
+    }
+
+    @Override
+    public CompletableFuture<List<CollectionElement>> filter(int userId, ElementFilter filter) {
+        return submit(() -> database.filter(userId, filter));
+    }
+
+    @Override
+    public CompletableFuture<Delta> changes(int userId, long since) {
+        return submit(() -> database.changes(userId, since));
+    }
+
+    @Override
+    public CompletableFuture<CollectionElement> addElement(CollectionElement element, int userId) {
+        return submitLater(() -> database.submitAdd(element, userId));
+    }
+
+    @Override
+    public CompletableFuture<List<CollectionElement>> addElements(List<CollectionElement> elements, int userId) {
+        return submit(() -> database.addElements(elements, userId));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> removeElement(CollectionElement element, int userId) {
+        return submitLater(() -> database.submitRemove(element, userId));
+    }
+
+    @Override
+    public CompletableFuture<List<CollectionElement>> removeFirst(int userId, int count) {
+        return submit(() -> database.removeFirst(userId, count));
+    }
+
+    @Override
+    public CompletableFuture<List<CollectionElement>> removeLast(int userId, int count) {
+        return submit(() -> database.removeLast(userId, count));
+    }
+
+    @Override
+    public CompletableFuture<Void> addUser(String email, String userPassword) {
+        return submit(() -> {
+            database.addUser(email, userPassword);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> checkUser(String email, String userPassword) {
+        return submit(() -> database.checkUser(email, userPassword));
+    }
+
+    @Override
+    public CompletableFuture<Integer> getUserId(String email, String userPassword) {
+        return submit(() -> database.getUserId(email, userPassword));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> consistsUser(String email) {
+        return submit(() -> database.consistsUser(email));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> addElement(CollectionElement element, String email, String passwordHash) {
+        return submit(() -> database.addElement(element, email, passwordHash));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> addElements(List<CollectionElement> elements, String email,
+                                                  String passwordHash) {
+        return submit(() -> database.addElements(elements, email, passwordHash));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> removeElement(CollectionElement element, String email, String passwordHash) {
+        return submit(() -> database.removeElement(element, email, passwordHash));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> removeFirst(String email, String passwordHash, int count) {
+        return submit(() -> database.removeFirst(email, passwordHash, count));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> removeLast(String email, String passwordHash, int count) {
+        return submit(() -> database.removeLast(email, passwordHash, count));
+    }
+
+    @Override
+    public void warmUp(int userId) {
+        database.warmUp(userId);
+    }
+
+    // Let queued operations finish, then close the database
+    @Override
+    public void close() throws Exception {
+        executor.shutdown();
+        if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+            executor.shutdownNow();
+        }
+        database.close();
+    }
+
+    // For operations that return a future of their own, the thread is free once they returned it
+    private <T> CompletableFuture<T> submitLater(Supplier<CompletableFuture<T>> operation) {
+        return submit(operation).thenCompose(Function.identity());
+    }
+
+    private <T> CompletableFuture<T> submit(Supplier<T> operation) {
+        try {
+            return CompletableFuture.supplyAsync(operation, executor);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<T> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(e);
+            return rejected;
+        }
+    }
+}
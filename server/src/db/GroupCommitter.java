@@ -0,0 +1,216 @@
+package db;
+
+import collection.CollectionElement;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+// Collects additions and removals of all users for a short window and commits them in one transaction.
+// Callers do not wait for the commit, so the queue is bounded and changes over it are rejected.
+public class GroupCommitter implements AutoCloseable {
+    // Changes waiting for a commit, in full groups
+    private static final int QUEUED_GROUPS = 4;
+
+    private static final String INSERT = "INSERT INTO lab7 " +
+            "(name, size, position_x, position_y, creation_date, user_id)" +
+            "VALUES (?, ?, ?, ?, ?, ?)";
+    private static final String DELETE = "DELETE FROM lab7 WHERE " +
+            "name = ? AND " +
+            "size = ? AND " +
+            "position_x = ? AND " +
+            "position_y = ? AND " +
+            "user_id = ?";
+
+    private static final String[] GENERATED_COLUMNS = {"id"};
+
+    private static class Mutation {
+        private final boolean insert;
+        private final CollectionElement element;
+        private final int userId;
+        private final CompletableFuture<Long> future = new CompletableFuture<>();
+        // Id of the inserted row, number of deleted rows
+        private long result;
+
+        private Mutation(boolean insert, CollectionElement element, int userId) {
+            this.insert = insert;
+            this.element = element;
+            this.userId = userId;
+        }
+    }
+
+    private final ConnectionPool pool;
+    private final long window;
+    private final int maxBatch;
+    private final BlockingQueue<Mutation> queue;
+    private final Thread flusher;
+    private volatile boolean closed = false;
+
+    public GroupCommitter(ConnectionPool pool, long window, int maxBatch) {
+        this.pool = pool;
+        this.window = window;
+        this.maxBatch = maxBatch;
+        queue = new LinkedBlockingQueue<>(maxBatch * QUEUED_GROUPS);
+        flusher = new Thread(this::run, "group-commit");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    // Complete with the id of the element once the addition is committed
+    public CompletableFuture<Long> add(CollectionElement element, int userId) {
+        return submit(new Mutation(true, element, userId));
+    }
+
+    // Complete with the number of removed elements once the removal is committed
+    public CompletableFuture<Long> remove(CollectionElement element, int userId) {
+        return submit(new Mutation(false, element, userId));
+    }
+
+    private CompletableFuture<Long> submit(Mutation mutation) {
+        if (closed) {
+            mutation.future.completeExceptionally(new SQLException("Group commit is closed"));
+        } else if (!queue.offer(mutation)) {
+            mutation.future.completeExceptionally(new RejectedExecutionException("Too many changes waiting for a commit"));
+        }
+        return mutation.future;
+    }
+
+    private void run() {
+        List<Mutation> batch = new ArrayList<>(maxBatch);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Mutation first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(window);
+                while (batch.size() < maxBatch) {
+                    Mutation next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                if (!closed) {
+                    continue;
+                }
+                queue.drainTo(batch);
+            }
+
+            flush(batch);
+            batch.clear();
+        }
+    }
+
+    private void flush(List<Mutation> batch) {
+        try (PooledConnection connection = pool.acquire()) {
+            Connection raw = connection.getConnection();
+            raw.setAutoCommit(false);
+            try {
+                execute(connection, batch);
+                raw.commit();
+            } catch (SQLException e) {
+                raw.rollback();
+                raw.setAutoCommit(true);
+                // One bad mutation must not fail the others, so retry them one by one
+                for (Mutation mutation : batch) {
+                    try {
+                        execute(connection, Collections.singletonList(mutation));
+                    } catch (SQLException single) {
+                        mutation.future.completeExceptionally(single);
+                    }
+                }
+                completeAll(batch);
+                return;
+            }
+            raw.setAutoCommit(true);
+            completeAll(batch);
+        } catch (SQLException e) {
+            batch.forEach(mutation -> mutation.future.completeExceptionally(e));
+        }
+    }
+
+    // Consecutive mutations of the same kind go into one JDBC batch, keeping the order of the queue
+    private void execute(PooledConnection connection, List<Mutation> batch) throws SQLException {
+        PreparedStatement current = null;
+        int runStart = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            Mutation mutation = batch.get(i);
+            PreparedStatement statement = mutation.insert
+                    ? connection.prepareStatement(INSERT, GENERATED_COLUMNS)
+                    : connection.prepareStatement(DELETE);
+            if (statement != current) {
+                if (current != null) {
+                    executeRun(current, batch.subList(runStart, i));
+                }
+                current = statement;
+                runStart = i;
+                // A failed flush may have left entries behind
+                current.clearBatch();
+            }
+            bind(statement, mutation);
+            statement.addBatch();
+        }
+        if (current != null) {
+            executeRun(current, batch.subList(runStart, batch.size()));
+        }
+    }
+
+    private void executeRun(PreparedStatement statement, List<Mutation> run) throws SQLException {
+        int[] counts = statement.executeBatch();
+        if (run.get(0).insert) {
+            // Generated ids come back in the order of the batch
+            try (ResultSet keys = statement.getGeneratedKeys()) {
+                for (Mutation mutation : run) {
+                    if (!keys.next()) {
+                        throw new SQLException("Generated id is missing");
+                    }
+                    mutation.result = keys.getLong(1);
+                }
+            }
+        } else {
+            for (int i = 0; i < run.size(); i++) {
+                // The driver may not know the count of a batched statement
+                run.get(i).result = i < counts.length ? Math.max(0, counts[i]) : 0;
+            }
+        }
+    }
+
+    private void bind(PreparedStatement statement, Mutation mutation) throws SQLException {
+        CollectionElement element = mutation.element;
+        statement.setString(1, element.getName());
+        statement.setDouble(2, element.getSize());
+        statement.setDouble(3, element.getPosition().getX());
+        statement.setDouble(4, element.getPosition().getY());
+        if (mutation.insert) {
+            statement.setTimestamp(5, Timestamp.valueOf(element.getCreationDate()));
+            statement.setInt(6, mutation.userId);
+        } else {
+            statement.setInt(5, mutation.userId);
+        }
+    }
+
+    private void completeAll(List<Mutation> batch) {
+        batch.forEach(mutation -> mutation.future.complete(mutation.result));
+    }
+
+    // Flush what is queued and stop
+    @Override
+    public void close() throws InterruptedException {
+        closed = true;
+        flusher.interrupt();
+        flusher.join(10_000);
+    }
+}
@@ -0,0 +1,57 @@
+package db;
+
+import java.time.LocalDateTime;
+
+// Message waiting in the outbound queue of the storage
+public class Mail {
+    // Assigned by the storage, zero for mail that was not queued yet
+    private final long id;
+    private final String recipient;
+    private final String subject;
+    private final String text;
+    private final LocalDateTime created;
+    // Attempts to send the mail including the current one
+    private final int attempts;
+
+    public Mail(String recipient, String subject, String text) {
+        this(0, recipient, subject, text, LocalDateTime.now(), 0);
+    }
+
+    Mail(long id, String recipient, String subject, String text, LocalDateTime created, int attempts) {
+        this.id = id;
+        this.recipient = recipient;
+        this.subject = subject;
+        this.text = text;
+        this.created = created;
+        this.attempts = attempts;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getRecipient() {
+        return recipient;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public LocalDateTime getCreated() {
+        return created;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    @Override
+    public String toString() {
+        return "mail #" + id + " to " + recipient;
+    }
+}
@@ -0,0 +1,17 @@
+package db;
+
+import java.util.List;
+
+// Outbound mail kept by the storage, so that it survives restarts and is committed together with the user.
+// Mail is sent at least once: a sender that dies with claimed mail leaves it to be claimed again after the lease.
+public interface MailQueue {
+    // Register the user and queue the mail in one transaction, return false if the email is taken or it failed
+    boolean addUser(String email, String passwordHash, Mail mail);
+    // Take up to limit mails that are due, they are not due again until the lease in milliseconds expires
+    List<Mail> claimMail(int limit, long lease);
+    void mailSent(Mail mail);
+    // The mail is due again after the delay in milliseconds
+    void mailFailed(Mail mail, long delay, String error);
+    // Give up on the mail and keep a record of it without the text
+    void mailDead(Mail mail, String error);
+}
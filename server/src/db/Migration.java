@@ -0,0 +1,30 @@
+package db;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// Schema change applied once, identified by its version
+public class Migration {
+    private final int version;
+    private final String description;
+    private final List<String> statements;
+
+    public Migration(int version, String description, String... statements) {
+        this.version = version;
+        this.description = description;
+        this.statements = Collections.unmodifiableList(Arrays.asList(statements));
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public List<String> getStatements() {
+        return statements;
+    }
+}
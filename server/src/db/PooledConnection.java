@@ -0,0 +1,94 @@
+package db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Connection borrowed from ConnectionPool, closing it returns the connection to the pool
+public class PooledConnection implements AutoCloseable {
+    private static final int MAX_CACHED_STATEMENTS = 64;
+
+    private final ConnectionPool pool;
+    private final Connection connection;
+    private final int backendPid;
+    // Statements stay prepared on the server for the lifetime of the connection
+    private final Map<String, PreparedStatement> statements =
+            new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    if (size() <= MAX_CACHED_STATEMENTS) {
+                        return false;
+                    }
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+            };
+    private long lastUsed = System.currentTimeMillis();
+
+    PooledConnection(ConnectionPool pool, Connection connection, int backendPid) {
+        this.pool = pool;
+        this.connection = connection;
+        this.backendPid = backendPid;
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    // Return the statement prepared for this SQL earlier on this connection, if there is one
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        PreparedStatement statement = statements.get(sql);
+        if (statement == null || statement.isClosed()) {
+            statement = connection.prepareStatement(sql);
+            statements.put(sql, statement);
+        } else {
+            statement.clearParameters();
+        }
+        return statement;
+    }
+
+    // Same as prepareStatement(sql), the statement also returns the generated values of the columns
+    public PreparedStatement prepareStatement(String sql, String[] generatedColumns) throws SQLException {
+        String key = sql + '\0' + String.join(",", generatedColumns);
+        PreparedStatement statement = statements.get(key);
+        if (statement == null || statement.isClosed()) {
+            statement = connection.prepareStatement(sql, generatedColumns);
+            statements.put(key, statement);
+        } else {
+            statement.clearParameters();
+        }
+        return statement;
+    }
+
+    @Override
+    public void close() {
+        lastUsed = System.currentTimeMillis();
+        pool.release(this);
+    }
+
+    int getBackendPid() {
+        return backendPid;
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    void closePhysically() {
+        statements.values().forEach(PooledConnection::closeQuietly);
+        statements.clear();
+        try {
+            connection.close();
+        } catch (SQLException ignored) {
+        }
+    }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException ignored) {
+        }
+    }
+}
@@ -1,63 +1,406 @@
 package db;
 
+import collection.Area;
 import collection.CollectionElement;
 import collection.CollectionInfo;
+import collection.Cursor;
+import collection.Delta;
+import collection.ElementFilter;
+import collection.Page;
+import collection.Position;
 
 import java.sql.*;
 import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
 
-public class PostgreSQLDatabase implements Database {
-    private String uri;
-    private String user;
-    private String password;
+public class PostgreSQLDatabase implements Database, MailQueue {
+    private static final int CHANGES_KEPT = 1000;
+    // Statistics of the elements of each user, followed by FROM
+    private static final String STATS_SELECT = "SELECT user_id, COUNT(*) AS n, " +
+            "SUM(size::DOUBLE PRECISION) AS size_sum, MIN(size) AS size_min, MAX(size) AS size_max, " +
+            "MIN(position_x) AS x_min, MAX(position_x) AS x_max, " +
+            "MIN(position_y) AS y_min, MAX(position_y) AS y_max";
+    // Channel notified with "userId:revision:elements" after statements that changed collections
+    public static final String CHANGES_CHANNEL = "lab7_changes";
 
-    public PostgreSQLDatabase(String uri, String user, String password) throws SQLException {
-        this.uri = uri;
-        this.user = user;
-        this.password = password;
-
-        try (Connection connection = DriverManager.getConnection(uri, user, password)) {
-            PreparedStatement statement = connection.prepareStatement(
+    // Append new migrations to the end, applied ones must never change
+    private static final List<Migration> MIGRATIONS = Arrays.asList(
+            new Migration(1, "Create tables",
                     "CREATE TABLE IF NOT EXISTS lab7_users (" +
                             "id SERIAL," +
                             "email VARCHAR NOT NULL," +
-                            "password VARCHAR NOT NULL)"
-            );
-            statement.execute();
-            statement = connection.prepareStatement(
+                            "password VARCHAR NOT NULL)",
                     "CREATE TABLE IF NOT EXISTS lab7 (" +
                             "name VARCHAR NOT NULL," +
                             "size REAL NOT NULL," +
                             "position_x REAL NOT NULL," +
                             "position_y REAL NOT NULL," +
                             "creation_date TIMESTAMPTZ NOT NULL," +
-                            "user_id INTEGER NOT NULL)");
-            statement.execute();
+                            "user_id INTEGER NOT NULL)"),
+            new Migration(2, "Add element ids, primary keys and indexes",
+                    "ALTER TABLE lab7_users ADD PRIMARY KEY (id)",
+                    // Registration could race and create users with the same email.
+                    // Their elements move to the earliest of them before the others are dropped.
+                    "UPDATE lab7 SET user_id = k.keep_id FROM (" +
+                            "SELECT id, MIN(id) OVER (PARTITION BY email) AS keep_id FROM lab7_users) k " +
+                            "WHERE lab7.user_id = k.id AND k.id <> k.keep_id",
+                    "DELETE FROM lab7_users u USING lab7_users k WHERE u.email = k.email AND u.id > k.id",
+                    "CREATE UNIQUE INDEX lab7_users_email ON lab7_users (email)",
+                    // Existing rows get their ids from the new sequence
+                    "ALTER TABLE lab7 ADD COLUMN id BIGSERIAL",
+                    "ALTER TABLE lab7 ADD PRIMARY KEY (id)",
+                    "CREATE INDEX lab7_user_size ON lab7 (user_id, size)"),
+            new Migration(3, "Order elements of a user by size and id in the index",
+                    "CREATE INDEX lab7_user_size_id ON lab7 (user_id, size, id)",
+                    "DROP INDEX lab7_user_size"),
+            new Migration(4, "Record changes of collections with per user revisions",
+                    "ALTER TABLE lab7_users " +
+                            "ADD COLUMN revision BIGINT NOT NULL DEFAULT 0, " +
+                            "ADD COLUMN compacted_revision BIGINT NOT NULL DEFAULT 0",
+                    "CREATE TABLE lab7_changes (" +
+                            "user_id INTEGER NOT NULL," +
+                            "revision BIGINT NOT NULL," +
+                            "element_id BIGINT NOT NULL," +
+                            "added BOOLEAN NOT NULL," +
+                            "PRIMARY KEY (user_id, revision))",
+                    // Every inserted or deleted element bumps the revision of its user, whatever statement did it.
+                    // The row lock on the user keeps revisions of one user committed in order.
+                    // Only the last CHANGES_KEPT changes of a user are kept, older ones are compacted away.
+                    "CREATE FUNCTION lab7_record_change() RETURNS trigger AS $$ " +
+                            "DECLARE " +
+                            "changed lab7%ROWTYPE; " +
+                            "rev BIGINT; " +
+                            "BEGIN " +
+                            "IF TG_OP = 'INSERT' THEN changed := NEW; ELSE changed := OLD; END IF; " +
+                            "UPDATE lab7_users SET revision = revision + 1 WHERE id = changed.user_id " +
+                            "RETURNING revision INTO rev; " +
+                            "IF rev IS NULL THEN RETURN NULL; END IF; " +
+                            "INSERT INTO lab7_changes (user_id, revision, element_id, added) " +
+                            "VALUES (changed.user_id, rev, changed.id, TG_OP = 'INSERT'); " +
+                            "IF rev % " + CHANGES_KEPT + " = 0 THEN " +
+                            "DELETE FROM lab7_changes WHERE user_id = changed.user_id " +
+                            "AND revision <= rev - " + CHANGES_KEPT + "; " +
+                            "UPDATE lab7_users SET compacted_revision = rev - " + CHANGES_KEPT + " " +
+                            "WHERE id = changed.user_id; " +
+                            "END IF; " +
+                            "RETURN NULL; " +
+                            "END $$ LANGUAGE plpgsql",
+                    "CREATE TRIGGER lab7_record_change AFTER INSERT OR DELETE ON lab7 " +
+                            "FOR EACH ROW EXECUTE PROCEDURE lab7_record_change()"),
+            new Migration(5, "Notify other servers about changed collections",
+                    // One notification per user and statement, sent after the row triggers bumped the revision.
+                    // Notifications are delivered on commit and identical ones of a transaction are folded.
+                    "CREATE FUNCTION lab7_notify_changes() RETURNS trigger AS $$ " +
+                            "BEGIN " +
+                            "PERFORM pg_notify('" + CHANGES_CHANNEL + "', u.id || ':' || u.revision) " +
+                            "FROM lab7_users u WHERE u.id IN (SELECT DISTINCT user_id FROM changed); " +
+                            "RETURN NULL; " +
+                            "END $$ LANGUAGE plpgsql",
+                    "CREATE TRIGGER lab7_notify_insert AFTER INSERT ON lab7 " +
+                            "REFERENCING NEW TABLE AS changed " +
+                            "FOR EACH STATEMENT EXECUTE PROCEDURE lab7_notify_changes()",
+                    "CREATE TRIGGER lab7_notify_delete AFTER DELETE ON lab7 " +
+                            "REFERENCING OLD TABLE AS changed " +
+                            "FOR EACH STATEMENT EXECUTE PROCEDURE lab7_notify_changes()"),
+            new Migration(6, "Queue outbound mail",
+                    "CREATE TABLE lab7_mail (" +
+                            "id BIGSERIAL PRIMARY KEY," +
+                            "recipient VARCHAR NOT NULL," +
+                            "subject VARCHAR NOT NULL," +
+                            "body TEXT NOT NULL," +
+                            "created TIMESTAMPTZ NOT NULL DEFAULT now()," +
+                            "attempts INTEGER NOT NULL DEFAULT 0," +
+                            "next_attempt TIMESTAMPTZ NOT NULL DEFAULT now()," +
+                            "last_error VARCHAR)",
+                    "CREATE INDEX lab7_mail_next_attempt ON lab7_mail (next_attempt)",
+                    // Bodies of dead mail are not kept, they contain passwords
+                    "CREATE TABLE lab7_mail_dead (" +
+                            "id BIGINT PRIMARY KEY," +
+                            "recipient VARCHAR NOT NULL," +
+                            "subject VARCHAR NOT NULL," +
+                            "created TIMESTAMPTZ NOT NULL," +
+                            "attempts INTEGER NOT NULL," +
+                            "last_error VARCHAR," +
+                            "died TIMESTAMPTZ NOT NULL DEFAULT now())"),
+            new Migration(7, "Keep statistics of collections in the user row",
+                    "ALTER TABLE lab7_users " +
+                            "ADD COLUMN created TIMESTAMPTZ NOT NULL DEFAULT now(), " +
+                            "ADD COLUMN modified TIMESTAMPTZ, " +
+                            "ADD COLUMN element_count BIGINT NOT NULL DEFAULT 0, " +
+                            "ADD COLUMN size_sum DOUBLE PRECISION NOT NULL DEFAULT 0, " +
+                            "ADD COLUMN size_min REAL, ADD COLUMN size_max REAL, " +
+                            "ADD COLUMN x_min REAL, ADD COLUMN x_max REAL, " +
+                            "ADD COLUMN y_min REAL, ADD COLUMN y_max REAL",
+                    // Existing collections were created no later than their oldest element
+                    "UPDATE lab7_users u SET " +
+                            "created = LEAST(u.created, s.first_created), modified = s.last_created, " +
+                            "element_count = s.n, size_sum = s.size_sum, " +
+                            "size_min = s.size_min, size_max = s.size_max, " +
+                            "x_min = s.x_min, x_max = s.x_max, y_min = s.y_min, y_max = s.y_max " +
+                            "FROM (" + STATS_SELECT + ", MIN(creation_date) AS first_created, " +
+                            "MAX(creation_date) AS last_created FROM lab7 GROUP BY user_id) s " +
+                            "WHERE u.id = s.user_id",
+                    // Bounds are looked up again after a removal from the border, these keep it to an index probe
+                    "CREATE INDEX lab7_user_x ON lab7 (user_id, position_x)",
+                    "CREATE INDEX lab7_user_y ON lab7 (user_id, position_y)",
+                    // One update per user and statement. LEAST and GREATEST skip the bounds of empty collections.
+                    "CREATE FUNCTION lab7_stats_insert() RETURNS trigger AS $$ " +
+                            "BEGIN " +
+                            "UPDATE lab7_users u SET " +
+                            "modified = now(), " +
+                            "element_count = u.element_count + s.n, " +
+                            "size_sum = u.size_sum + s.size_sum, " +
+                            "size_min = LEAST(u.size_min, s.size_min), size_max = GREATEST(u.size_max, s.size_max), " +
+                            "x_min = LEAST(u.x_min, s.x_min), x_max = GREATEST(u.x_max, s.x_max), " +
+                            "y_min = LEAST(u.y_min, s.y_min), y_max = GREATEST(u.y_max, s.y_max) " +
+                            "FROM (" + STATS_SELECT + " FROM changed GROUP BY user_id) s " +
+                            "WHERE u.id = s.user_id; " +
+                            "RETURN NULL; " +
+                            "END $$ LANGUAGE plpgsql",
+                    // A bound is looked up again only if a removed element was on it
+                    "CREATE FUNCTION lab7_stats_delete() RETURNS trigger AS $$ " +
+                            "BEGIN " +
+                            "UPDATE lab7_users u SET " +
+                            "modified = now(), " +
+                            "element_count = u.element_count - s.n, " +
+                            "size_sum = CASE WHEN u.element_count = s.n THEN 0 ELSE u.size_sum - s.size_sum END, " +
+                            boundAfterDelete("size_min", "MIN(size)", "<=") + ", " +
+                            boundAfterDelete("size_max", "MAX(size)", ">=") + ", " +
+                            boundAfterDelete("x_min", "MIN(position_x)", "<=") + ", " +
+                            boundAfterDelete("x_max", "MAX(position_x)", ">=") + ", " +
+                            boundAfterDelete("y_min", "MIN(position_y)", "<=") + ", " +
+                            boundAfterDelete("y_max", "MAX(position_y)", ">=") + " " +
+                            "FROM (" + STATS_SELECT + " FROM changed GROUP BY user_id) s " +
+                            "WHERE u.id = s.user_id; " +
+                            "RETURN NULL; " +
+                            "END $$ LANGUAGE plpgsql",
+                    "CREATE TRIGGER lab7_stats_insert AFTER INSERT ON lab7 " +
+                            "REFERENCING NEW TABLE AS changed " +
+                            "FOR EACH STATEMENT EXECUTE PROCEDURE lab7_stats_insert()",
+                    "CREATE TRIGGER lab7_stats_delete AFTER DELETE ON lab7 " +
+                            "REFERENCING OLD TABLE AS changed " +
+                            "FOR EACH STATEMENT EXECUTE PROCEDURE lab7_stats_delete()"),
+            new Migration(8, "Notify the number of changed elements",
+                    // The server that made the change finds it right after its cached revision and skips the query
+                    "CREATE OR REPLACE FUNCTION lab7_notify_changes() RETURNS trigger AS $$ " +
+                            "BEGIN " +
+                            "PERFORM pg_notify('" + CHANGES_CHANNEL + "', u.id || ':' || u.revision || ':' || c.n) " +
+                            "FROM lab7_users u JOIN (SELECT user_id, COUNT(*) AS n FROM changed GROUP BY user_id) c " +
+                            "ON u.id = c.user_id; " +
+                            "RETURN NULL; " +
+                            "END $$ LANGUAGE plpgsql"),
+            new Migration(9, "Record changes once per statement",
+                    "DROP TRIGGER lab7_record_change ON lab7",
+                    "DROP FUNCTION lab7_record_change()",
+                    // The user rows are locked in id order, so statements changing several users cannot deadlock.
+                    // Every user row is updated once and the changed elements take the revisions in between.
+                    // Compaction keeps at least the last CHANGES_KEPT changes, as the row trigger did.
+                    // The triggers sort before lab7_notify_*, so the notification sees the new revision.
+                    "CREATE FUNCTION lab7_record_changes() RETURNS trigger AS $$ " +
+                            "BEGIN " +
+                            "PERFORM 1 FROM lab7_users WHERE id IN (SELECT user_id FROM changed) " +
+                            "ORDER BY id FOR UPDATE; " +
+                            "WITH bumped AS (" +
+                            "UPDATE lab7_users u SET revision = u.revision + c.n " +
+                            "FROM (SELECT user_id, COUNT(*) AS n FROM changed GROUP BY user_id) c " +
+                            "WHERE u.id = c.user_id RETURNING u.id, u.revision - c.n AS base) " +
+                            "INSERT INTO lab7_changes (user_id, revision, element_id, added) " +
+                            "SELECT ch.user_id, b.base + row_number() OVER (PARTITION BY ch.user_id ORDER BY ch.id), " +
+                            "ch.id, TG_OP = 'INSERT' " +
+                            "FROM changed ch JOIN bumped b ON b.id = ch.user_id; " +
+                            "WITH compacted AS (" +
+                            "UPDATE lab7_users u SET compacted_revision = " +
+                            "u.revision - u.revision % " + CHANGES_KEPT + " - " + CHANGES_KEPT + " " +
+                            "WHERE u.id IN (SELECT user_id FROM changed) AND u.compacted_revision < " +
+                            "u.revision - u.revision % " + CHANGES_KEPT + " - " + CHANGES_KEPT + " " +
+                            "RETURNING u.id, u.compacted_revision) " +
+                            "DELETE FROM lab7_changes l USING compacted c " +
+                            "WHERE l.user_id = c.id AND l.revision <= c.compacted_revision; " +
+                            "RETURN NULL; " +
+                            "END $$ LANGUAGE plpgsql",
+                    "CREATE TRIGGER lab7_changes_insert AFTER INSERT ON lab7 " +
+                            "REFERENCING NEW TABLE AS changed " +
+                            "FOR EACH STATEMENT EXECUTE PROCEDURE lab7_record_changes()",
+                    "CREATE TRIGGER lab7_changes_delete AFTER DELETE ON lab7 " +
+                            "REFERENCING OLD TABLE AS changed " +
+                            "FOR EACH STATEMENT EXECUTE PROCEDURE lab7_record_changes()")
+    );
+
+    private final ConnectionPool pool;
+    private final GroupCommitter groupCommitter;
+
+    // Assignment of a bound of the user row in the statistics trigger of deletions
+    private static String boundAfterDelete(String column, String aggregate, String reached) {
+        return column + " = CASE WHEN s." + column + " " + reached + " u." + column + " " +
+                "THEN (SELECT " + aggregate + " FROM lab7 WHERE user_id = u.id) ELSE u." + column + " END";
+    }
+
+    public PostgreSQLDatabase(String uri, String user, String password) throws SQLException {
+        this(new ConnectionPool(uri, user, password, 1, 10, 5_000, 60_000));
+    }
+
+    public PostgreSQLDatabase(ConnectionPool pool) throws SQLException {
+        this(pool, 0, 0);
+    }
+
+    // With a positive batch window additions and removals are committed in groups by GroupCommitter
+    public PostgreSQLDatabase(ConnectionPool pool, long batchWindow, int batchSize) throws SQLException {
+        this.pool = pool;
+
+        try (PooledConnection connection = pool.acquire()) {
+            new SchemaMigrator(MIGRATIONS).migrate(connection.getConnection());
         }
+
+        this.groupCommitter = batchWindow > 0 && batchSize > 1
+                ? new GroupCommitter(pool, batchWindow, batchSize)
+                : null;
     }
 
     @Override
     public void close() throws Exception {
+        if (groupCommitter != null) {
+            groupCommitter.close();
+        }
+        pool.close();
     }
 
     @Override
     public List<CollectionElement> show(int userId) {
         System.out.println("Request 'show' from user #" + userId);
-        try (Connection connection = DriverManager.getConnection(uri, user, password)) {
+        try (PooledConnection connection = pool.acquire()) {
             List<CollectionElement> result = new ArrayList<>();
-            PreparedStatement statement = connection.prepareStatement("SELECT * FROM lab7 WHERE user_id = ?");
+            PreparedStatement statement = connection.prepareStatement(
+                    "SELECT * FROM lab7 WHERE user_id = ? ORDER BY size, id");
+            statement.setInt(1, userId);
+            ResultSet rs = statement.executeQuery();
+            while (rs.next()) {
+                result.add(readElement(rs));
+            }
+            System.out.println("Success");
+            return result;
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        System.out.println("Error");
+        return null;
+    }
+
+    // Keyset pagination: the row comparison continues the (user_id, size, id) index scan after the cursor.
+    // The size of the cursor is read from a REAL column and is compared as REAL again, or the row itself may follow it.
+    @Override
+    public Page show(int userId, Cursor after, int limit) {
+        System.out.println("Request 'show' of " + limit + " elements after " + after + " from user #" + userId);
+        try (PooledConnection connection = pool.acquire()) {
+            PreparedStatement statement = connection.prepareStatement(after == null
+                    ? "SELECT * FROM lab7 WHERE user_id = ? ORDER BY size, id LIMIT ?"
+                    : "SELECT * FROM lab7 WHERE user_id = ? AND (size, id) > (CAST(? AS REAL), ?) ORDER BY size, id LIMIT ?");
+            statement.setInt(1, userId);
+            int index = 2;
+            if (after != null) {
+                statement.setDouble(index++, after.getSize());
+                statement.setLong(index++, after.getId());
+            }
+            // One more row tells whether there is a next page
+            statement.setInt(index, limit + 1);
+            ResultSet rs = statement.executeQuery();
+            List<CollectionElement> elements = new ArrayList<>(limit);
+            boolean hasNext = false;
+            while (rs.next()) {
+                if (elements.size() == limit) {
+                    hasNext = true;
+                    break;
+                }
+                elements.add(readElement(rs));
+            }
+            System.out.println("Success");
+            return new Page(elements, hasNext ? Cursor.after(elements.get(limit - 1)) : null);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        System.out.println("Error");
+        return null;
+    }
+
+    // The area is looked up in the (user_id, position_x) or the (user_id, position_y) index.
+    // Bounds are rounded to REAL like the stored coordinates, so an element stored at a bound is within the area.
+    @Override
+    public List<CollectionElement> within(int userId, Area area) {
+        System.out.println("Request 'within' " + area + " from user #" + userId);
+        try (PooledConnection connection = pool.acquire()) {
+            PreparedStatement statement = connection.prepareStatement("SELECT * FROM lab7 WHERE user_id = ? " +
+                    "AND position_x BETWEEN CAST(? AS REAL) AND CAST(? AS REAL) " +
+                    "AND position_y BETWEEN CAST(? AS REAL) AND CAST(? AS REAL) ORDER BY size, id");
+            statement.setInt(1, userId);
+            statement.setDouble(2, area.getMinX());
+            statement.setDouble(3, area.getMaxX());
+            statement.setDouble(4, area.getMinY());
+            statement.setDouble(5, area.getMaxY());
+            ResultSet rs = statement.executeQuery();
+            List<CollectionElement> result = new ArrayList<>();
+            while (rs.next()) {
+                result.add(readElement(rs));
+            }
+            System.out.println("Success");
+            return result;
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        System.out.println("Error");
+        return null;
+    }
+
+    // Without a spatial index the distances of all elements of the user are sorted by the database,
+    // collections of active users are answered from the index of the cache instead
+    @Override
+    public List<CollectionElement> nearest(int userId, Position position, int count) {
+        System.out.println("Request 'nearest' " + count + " to " + position + " from user #" + userId);
+        try (PooledConnection connection = pool.acquire()) {
+            PreparedStatement statement = connection.prepareStatement("SELECT * FROM lab7 WHERE user_id = ? " +
+                    "ORDER BY (position_x - ?) * (position_x - ?) + (position_y - ?) * (position_y - ?), size, id " +
+                    "LIMIT ?");
+            statement.setInt(1, userId);
+            statement.setDouble(2, position.getX());
+            statement.setDouble(3, position.getX());
+            statement.setDouble(4, position.getY());
+            statement.setDouble(5, position.getY());
+            statement.setInt(6, count);
+            ResultSet rs = statement.executeQuery();
+            List<CollectionElement> result = new ArrayList<>(count);
+            while (rs.next()) {
+                result.add(readElement(rs));
+            }
+            System.out.println("Success");
+            return result;
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        System.out.println("Error");
+        return null;
+    }
+
+    // The filter becomes the WHERE clause with its values as parameters
+    @Override
+    public List<CollectionElement> filter(int userId, ElementFilter filter) {
+        System.out.println("Request 'filter' " + filter + " from user #" + userId);
+        List<Object> parameters = new ArrayList<>();
+        String condition = condition(filter, parameters);
+        try (PooledConnection connection = pool.acquire()) {
+            PreparedStatement statement = connection.prepareStatement(
+                    "SELECT * FROM lab7 WHERE user_id = ? AND " + condition + " ORDER BY size, id");
             statement.setInt(1, userId);
+            for (int i = 0; i < parameters.size(); i++) {
+                statement.setObject(i + 2, parameters.get(i));
+            }
             ResultSet rs = statement.executeQuery();
+            List<CollectionElement> result = new ArrayList<>();
             while (rs.next()) {
-                String name = rs.getString("name");
-                double size = rs.getDouble("size");
-                double posX = rs.getDouble("position_x");
-                double posY = rs.getDouble("position_y");
-                Timestamp creationDate = rs.getTimestamp("creation_date");
-                result.add(new CollectionElement(name, size, posX, posY)
-                        .withCreationDate(creationDate.toLocalDateTime()));
+                result.add(readElement(rs));
             }
             System.out.println("Success");
             return result;
@@ -68,16 +411,142 @@ public class PostgreSQLDatabase implements Database {
         return null;
     }
 
+    // Same meaning as ElementFilter.test, values are appended to the parameters in the order of their places.
+    // Bounds on sizes and positions are compared as REAL like the columns.
+    private static String condition(ElementFilter filter, List<Object> parameters) {
+        switch (filter.getKind()) {
+            case NAME:
+                if (filter.getName() == null) {
+                    return "name IS NULL";
+                }
+                parameters.add(filter.getName());
+                return "name = ?";
+            case NAME_PREFIX:
+                parameters.add(filter.getName().replaceAll("[\\\\%_]", "\\\\$0") + "%");
+                return "name LIKE ?";
+            case SIZE:
+                parameters.add(filter.getMinSize());
+                parameters.add(filter.getMaxSize());
+                return "size BETWEEN CAST(? AS REAL) AND CAST(? AS REAL)";
+            case POSITION:
+                parameters.add(filter.getArea().getMinX());
+                parameters.add(filter.getArea().getMaxX());
+                parameters.add(filter.getArea().getMinY());
+                parameters.add(filter.getArea().getMaxY());
+                return "(position_x BETWEEN CAST(? AS REAL) AND CAST(? AS REAL) " +
+                        "AND position_y BETWEEN CAST(? AS REAL) AND CAST(? AS REAL))";
+            case CREATED:
+                List<String> bounds = new ArrayList<>();
+                if (filter.getCreatedFrom() != null) {
+                    parameters.add(Timestamp.valueOf(filter.getCreatedFrom()));
+                    bounds.add("creation_date >= ?");
+                }
+                if (filter.getCreatedTo() != null) {
+                    parameters.add(Timestamp.valueOf(filter.getCreatedTo()));
+                    bounds.add("creation_date <= ?");
+                }
+                return bounds.isEmpty() ? "TRUE" : "(" + String.join(" AND ", bounds) + ")";
+            default:
+                boolean and = filter.getKind() == ElementFilter.Kind.AND;
+                if (filter.getOperands().isEmpty()) {
+                    return and ? "TRUE" : "FALSE";
+                }
+                List<String> operands = new ArrayList<>();
+                for (ElementFilter operand : filter.getOperands()) {
+                    operands.add(condition(operand, parameters));
+                }
+                return "(" + String.join(and ? " AND " : " OR ", operands) + ")";
+        }
+    }
+
+    // The revision and the changes are read from one snapshot, so they always agree
+    @Override
+    public Delta changes(int userId, long since) {
+        System.out.println("Request 'changes' since revision " + since + " from user #" + userId);
+        try (PooledConnection connection = pool.acquire()) {
+            Connection raw = connection.getConnection();
+            raw.setAutoCommit(false);
+            raw.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+            try {
+                Delta delta = readChanges(connection, userId, since);
+                raw.commit();
+                System.out.println("Success");
+                return delta;
+            } catch (SQLException e) {
+                raw.rollback();
+                throw e;
+            } finally {
+                raw.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+                raw.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        System.out.println("Error");
+        return null;
+    }
+
+    private Delta readChanges(PooledConnection connection, int userId, long since) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement(
+                "SELECT revision, compacted_revision FROM lab7_users WHERE id = ?");
+        statement.setInt(1, userId);
+        ResultSet rs = statement.executeQuery();
+        if (!rs.next()) {
+            throw new SQLException("No user #" + userId);
+        }
+        long revision = rs.getLong(1);
+        long compacted = rs.getLong(2);
+
+        List<CollectionElement> added = new ArrayList<>();
+        // Changes the client missed were compacted, or the client knows revisions that never existed
+        if (since < compacted || since > revision) {
+            statement = connection.prepareStatement("SELECT * FROM lab7 WHERE user_id = ? ORDER BY size, id");
+            statement.setInt(1, userId);
+            rs = statement.executeQuery();
+            while (rs.next()) {
+                added.add(readElement(rs));
+            }
+            return new Delta(revision, true, added, new long[0]);
+        }
+
+        // Only the last change of every element matters. An element added and removed after the
+        // revision is reported as removed, which the client ignores.
+        statement = connection.prepareStatement(
+                "SELECT c.element_id, c.added AND l.id IS NOT NULL AS present, l.* FROM (" +
+                        "SELECT DISTINCT ON (element_id) element_id, added FROM lab7_changes " +
+                        "WHERE user_id = ? AND revision > ? ORDER BY element_id, revision DESC) c " +
+                        "LEFT JOIN lab7 l ON l.id = c.element_id");
+        statement.setInt(1, userId);
+        statement.setLong(2, since);
+        rs = statement.executeQuery();
+        List<Long> removed = new ArrayList<>();
+        while (rs.next()) {
+            if (rs.getBoolean("present")) {
+                added.add(readElement(rs));
+            } else {
+                removed.add(rs.getLong("element_id"));
+            }
+        }
+        return new Delta(revision, false, added, removed.stream().mapToLong(Long::longValue).toArray());
+    }
+
     @Override
     public CollectionInfo info(int userId) {
         System.out.println("Request 'info' from user #" + userId);
-        try (Connection connection = DriverManager.getConnection(uri, user, password)) {
-            PreparedStatement statement = connection.prepareStatement("SELECT COUNT(*) FROM lab7 WHERE user_id = ?");
+        try (PooledConnection connection = pool.acquire()) {
+            PreparedStatement statement = connection.prepareStatement("SELECT " +
+                    "created, modified, element_count, size_min, size_max, size_sum, " +
+                    "x_min, y_min, x_max, y_max FROM lab7_users WHERE id = ?");
             statement.setInt(1, userId);
             ResultSet rs = statement.executeQuery();
             if (rs.next()) {
                 System.out.println("Success");
-                return new CollectionInfo(LocalDateTime.MIN, rs.getInt(1));
+                Timestamp modified = rs.getTimestamp(2);
+                int count = rs.getInt(3);
+                return new CollectionInfo(rs.getTimestamp(1).toLocalDateTime(),
+                        modified == null ? null : modified.toLocalDateTime(), count,
+                        rs.getDouble(4), rs.getDouble(5), count == 0 ? 0 : rs.getDouble(6) / count,
+                        rs.getDouble(7), rs.getDouble(8), rs.getDouble(9), rs.getDouble(10));
             }
         } catch (SQLException e) {
             e.printStackTrace();
@@ -87,30 +556,108 @@ public class PostgreSQLDatabase implements Database {
     }
 
     @Override
-    public void addElement(CollectionElement element, int userId) {
+    public CollectionElement addElement(CollectionElement element, int userId) {
+        if (groupCommitter != null) {
+            return submitAdd(element, userId).join();
+        }
         System.out.println("Request 'add' from user #" + userId);
-        try (Connection connection = DriverManager.getConnection(uri, user, password)) {
+        try (PooledConnection connection = pool.acquire()) {
             PreparedStatement statement = connection.prepareStatement("INSERT INTO lab7 " +
                     "(name, size, position_x, position_y, creation_date, user_id)" +
-                    "VALUES (?, ?, ?, ?, ?, ?)");
+                    "VALUES (?, ?, ?, ?, ?, ?) RETURNING id");
             statement.setString(1, element.getName());
             statement.setDouble(2, element.getSize());
             statement.setDouble(3, element.getPosition().getX());
             statement.setDouble(4, element.getPosition().getY());
             statement.setTimestamp(5, Timestamp.valueOf(element.getCreationDate()));
             statement.setInt(6, userId);
-            statement.execute();
-            System.out.println("Success");
+            ResultSet rs = statement.executeQuery();
+            if (rs.next()) {
+                System.out.println("Success");
+                return stored(element, rs.getLong(1));
+            }
         } catch (SQLException e) {
             e.printStackTrace();
-            System.out.println("Error");
         }
+        System.out.println("Error");
+        return null;
     }
 
+    // One batch in one transaction, the driver sends it as multi-row inserts
     @Override
-    public void removeElement(CollectionElement element, int userId) {
+    public List<CollectionElement> addElements(List<CollectionElement> elements, int userId) {
+        System.out.println("Request 'import' of " + elements.size() + " elements from user #" + userId);
+        try (PooledConnection connection = pool.acquire()) {
+            Connection raw = connection.getConnection();
+            raw.setAutoCommit(false);
+            try {
+                PreparedStatement statement = connection.prepareStatement("INSERT INTO lab7 " +
+                        "(name, size, position_x, position_y, creation_date, user_id)" +
+                        "VALUES (?, ?, ?, ?, ?, ?)", new String[]{"id"});
+                statement.clearBatch();
+                for (CollectionElement element : elements) {
+                    statement.setString(1, element.getName());
+                    statement.setDouble(2, element.getSize());
+                    statement.setDouble(3, element.getPosition().getX());
+                    statement.setDouble(4, element.getPosition().getY());
+                    statement.setTimestamp(5, Timestamp.valueOf(element.getCreationDate()));
+                    statement.setInt(6, userId);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+                List<CollectionElement> stored = new ArrayList<>(elements.size());
+                // Generated ids come back in the order of the batch
+                try (ResultSet keys = statement.getGeneratedKeys()) {
+                    for (CollectionElement element : elements) {
+                        if (!keys.next()) {
+                            throw new SQLException("Generated id is missing");
+                        }
+                        stored.add(stored(element, keys.getLong(1)));
+                    }
+                }
+                raw.commit();
+                System.out.println("Success");
+                return stored;
+            } catch (SQLException e) {
+                raw.rollback();
+                throw e;
+            } finally {
+                raw.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        System.out.println("Error");
+        return null;
+    }
+
+    // The commit completes the future on the thread of GroupCommitter
+    @Override
+    public CompletableFuture<CollectionElement> submitAdd(CollectionElement element, int userId) {
+        if (groupCommitter == null) {
+            return Database.super.submitAdd(element, userId);
+        }
+        System.out.println("Request 'add' from user #" + userId);
+        return committed(groupCommitter.add(element, userId))
+                .thenApply(id -> id == null ? null : stored(element, id));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> submitRemove(CollectionElement element, int userId) {
+        if (groupCommitter == null) {
+            return Database.super.submitRemove(element, userId);
+        }
+        System.out.println("Request 'remove' from user #" + userId);
+        return committed(groupCommitter.remove(element, userId)).thenApply(count -> count != null);
+    }
+
+    @Override
+    public boolean removeElement(CollectionElement element, int userId) {
+        if (groupCommitter != null) {
+            return submitRemove(element, userId).join();
+        }
         System.out.println("Request 'remove' from user #" + userId);
-        try (Connection connection = DriverManager.getConnection(uri, user, password)) {
+        try (PooledConnection connection = pool.acquire()) {
             PreparedStatement statement = connection.prepareStatement(
                     "DELETE FROM lab7 WHERE " +
                             "name = ? AND " +
@@ -125,16 +672,18 @@ public class PostgreSQLDatabase implements Database {
             statement.setInt(5, userId);
             statement.execute();
             System.out.println("Success");
+            return true;
         } catch (SQLException e) {
             e.printStackTrace();
             System.out.println("Error");
         }
+        return false;
     }
 
     @Override
     public void addUser(String email, String userPassword) {
         System.out.println("Request 'register' from e-mail " + email);
-        try (Connection connection = DriverManager.getConnection(uri, user, password)) {
+        try (PooledConnection connection = pool.acquire()) {
             PreparedStatement statement = connection.prepareStatement("INSERT INTO lab7_users " +
                     "(email, password)" +
                     "VALUES (?, ?)");
@@ -148,10 +697,108 @@ public class PostgreSQLDatabase implements Database {
         }
     }
 
+    @Override
+    public boolean addUser(String email, String passwordHash, Mail mail) {
+        System.out.println("Request 'register' from e-mail " + email);
+        try (PooledConnection connection = pool.acquire()) {
+            Connection raw = connection.getConnection();
+            raw.setAutoCommit(false);
+            try {
+                PreparedStatement user = connection.prepareStatement("INSERT INTO lab7_users " +
+                        "(email, password)" +
+                        "VALUES (?, ?) ON CONFLICT (email) DO NOTHING");
+                user.setString(1, email);
+                user.setString(2, passwordHash);
+                if (user.executeUpdate() == 0) {
+                    raw.rollback();
+                    System.out.println("Already registered");
+                    return false;
+                }
+                PreparedStatement queued = connection.prepareStatement("INSERT INTO lab7_mail " +
+                        "(recipient, subject, body, created)" +
+                        "VALUES (?, ?, ?, ?)");
+                queued.setString(1, mail.getRecipient());
+                queued.setString(2, mail.getSubject());
+                queued.setString(3, mail.getText());
+                queued.setTimestamp(4, Timestamp.valueOf(mail.getCreated()));
+                queued.executeUpdate();
+                raw.commit();
+                System.out.println("Success");
+                return true;
+            } catch (SQLException e) {
+                raw.rollback();
+                throw e;
+            } finally {
+                raw.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        System.out.println("Error");
+        return false;
+    }
+
+    // Several servers may send the queued mail, each claims rows the others have not locked
+    @Override
+    public List<Mail> claimMail(int limit, long lease) {
+        List<Mail> claimed = new ArrayList<>();
+        try (PooledConnection connection = pool.acquire()) {
+            PreparedStatement statement = connection.prepareStatement("UPDATE lab7_mail SET " +
+                    "attempts = attempts + 1, " +
+                    "next_attempt = now() + ? * INTERVAL '1 millisecond' " +
+                    "WHERE id IN (SELECT id FROM lab7_mail WHERE next_attempt <= now() " +
+                    "ORDER BY next_attempt LIMIT ? FOR UPDATE SKIP LOCKED) " +
+                    "RETURNING id, recipient, subject, body, created, attempts");
+            statement.setLong(1, lease);
+            statement.setInt(2, limit);
+            ResultSet rs = statement.executeQuery();
+            while (rs.next()) {
+                claimed.add(new Mail(rs.getLong(1), rs.getString(2), rs.getString(3), rs.getString(4),
+                        rs.getTimestamp(5).toLocalDateTime(), rs.getInt(6)));
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return claimed;
+    }
+
+    @Override
+    public void mailSent(Mail mail) {
+        updateMail("DELETE FROM lab7_mail WHERE id = ?", mail.getId());
+    }
+
+    @Override
+    public void mailFailed(Mail mail, long delay, String error) {
+        updateMail("UPDATE lab7_mail SET " +
+                "next_attempt = now() + ? * INTERVAL '1 millisecond', " +
+                "last_error = ? " +
+                "WHERE id = ?", delay, error, mail.getId());
+    }
+
+    @Override
+    public void mailDead(Mail mail, String error) {
+        updateMail("WITH dead AS (DELETE FROM lab7_mail WHERE id = ? " +
+                "RETURNING id, recipient, subject, created, attempts) " +
+                "INSERT INTO lab7_mail_dead (id, recipient, subject, created, attempts, last_error) " +
+                "SELECT id, recipient, subject, created, attempts, ? FROM dead", mail.getId(), error);
+    }
+
+    private void updateMail(String sql, Object... parameters) {
+        try (PooledConnection connection = pool.acquire()) {
+            PreparedStatement statement = connection.prepareStatement(sql);
+            for (int i = 0; i < parameters.length; i++) {
+                statement.setObject(i + 1, parameters[i]);
+            }
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
     @Override
     public boolean checkUser(String email, String userPassword) {
         System.out.println("Check for user " + email);
-        try (Connection connection = DriverManager.getConnection(uri, user, password)) {
+        try (PooledConnection connection = pool.acquire()) {
             PreparedStatement statement = connection.prepareStatement("SELECT COUNT(id) FROM lab7_users WHERE " +
                     "email = ? AND " +
                     "password = ?");
@@ -171,41 +818,49 @@ public class PostgreSQLDatabase implements Database {
     }
 
     @Override
-    public void removeFirst(int userId) {
+    public List<CollectionElement> removeFirst(int userId, int count) {
         System.out.println("Request 'remove_first' from user #" + userId);
-        try (Connection connection = DriverManager.getConnection(uri, user, password)) {
-            PreparedStatement statement = connection.prepareStatement(
-                    "DELETE FROM lab7 WHERE name IN (" +
-                            "SELECT name FROM lab7 WHERE user_id = ? ORDER BY size DESC LIMIT 1)");
-            statement.setInt(1, userId);
-            statement.execute();
-            System.out.println("Success");
-        } catch (SQLException e) {
-            e.printStackTrace();
-            System.out.println("Error");
-        }
+        return removeOrdered(userId, count, "DESC");
     }
 
     @Override
-    public void removeLast(int userId) {
+    public List<CollectionElement> removeLast(int userId, int count) {
         System.out.println("Request 'remove_last' from user #" + userId);
-        try (Connection connection = DriverManager.getConnection(uri, user, password)) {
+        return removeOrdered(userId, count, "ASC");
+    }
+
+    // Delete the top elements of the user in one statement driven by the (user_id, size, id) index.
+    // Rows locked by a concurrent removal are skipped, so parallel requests remove different elements
+    // instead of waiting and coming back short. They still commit one after another: the revision trigger
+    // locks the user row, which keeps the revisions of a user in commit order.
+    private List<CollectionElement> removeOrdered(int userId, int count, String direction) {
+        List<CollectionElement> result = new ArrayList<>();
+        try (PooledConnection connection = pool.acquire()) {
             PreparedStatement statement = connection.prepareStatement(
-                    "DELETE FROM lab7 WHERE name IN (" +
-                            "SELECT name FROM LAB7 WHERE user_id = ? ORDER BY size ASC LIMIT 1)");
+                    "DELETE FROM lab7 WHERE id IN (" +
+                            "SELECT id FROM lab7 WHERE user_id = ? " +
+                            "ORDER BY size " + direction + ", id " + direction + " " +
+                            "LIMIT ? FOR UPDATE SKIP LOCKED) " +
+                            "RETURNING *");
             statement.setInt(1, userId);
-            statement.execute();
+            statement.setInt(2, count);
+            ResultSet rs = statement.executeQuery();
+            while (rs.next()) {
+                result.add(readElement(rs));
+            }
+            result.sort(CollectionElement::compareTo);
             System.out.println("Success");
         } catch (SQLException e) {
             e.printStackTrace();
             System.out.println("Error");
         }
+        return result;
     }
 
     @Override
     public int getUserId(String email, String passwordHash) {
         System.out.println("Check user id for " + email);
-        try (Connection connection = DriverManager.getConnection(uri, user, password)) {
+        try (PooledConnection connection = pool.acquire()) {
             PreparedStatement statement = connection.prepareStatement("SELECT id FROM lab7_users WHERE " +
                     "email = ? AND " +
                     "password = ?");
@@ -226,7 +881,7 @@ public class PostgreSQLDatabase implements Database {
     @Override
     public boolean consistsUser(String email) {
         System.out.println("Check for user existence " + email);
-        try (Connection connection = DriverManager.getConnection(uri, user, password)) {
+        try (PooledConnection connection = pool.acquire()) {
             PreparedStatement statement = connection.prepareStatement("SELECT COUNT(id) FROM lab7_users WHERE " +
                     "email = ?");
             statement.setString(1, email);
@@ -242,4 +897,127 @@ public class PostgreSQLDatabase implements Database {
         System.out.println("Error");
         return false;
     }
+
+    @Override
+    public boolean addElement(CollectionElement element, String email, String passwordHash) {
+        System.out.println("Request 'add' from " + email);
+        try (PooledConnection connection = pool.acquire()) {
+            PreparedStatement statement = connection.prepareStatement("INSERT INTO lab7 " +
+                    "(name, size, position_x, position_y, creation_date, user_id) " +
+                    "SELECT ?, ?, ?, ?, ?, id FROM lab7_users WHERE " +
+                    "email = ? AND " +
+                    "password = ?");
+            statement.setString(1, element.getName());
+            statement.setDouble(2, element.getSize());
+            statement.setDouble(3, element.getPosition().getX());
+            statement.setDouble(4, element.getPosition().getY());
+            statement.setTimestamp(5, Timestamp.valueOf(element.getCreationDate()));
+            statement.setString(6, email);
+            statement.setString(7, passwordHash);
+            boolean result = statement.executeUpdate() > 0;
+            System.out.println(result ? "Success" : "Not authenticated");
+            return result;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            System.out.println("Error");
+        }
+        return false;
+    }
+
+    @Override
+    public boolean removeElement(CollectionElement element, String email, String passwordHash) {
+        System.out.println("Request 'remove' from " + email);
+        return deleteAuthenticated(
+                "DELETE FROM lab7 WHERE " +
+                        "name = ? AND " +
+                        "size = ? AND " +
+                        "position_x = ? AND " +
+                        "position_y = ? AND " +
+                        "user_id IN (SELECT id FROM u)",
+                email, passwordHash,
+                element.getName(), element.getSize(),
+                element.getPosition().getX(), element.getPosition().getY());
+    }
+
+    @Override
+    public boolean removeFirst(String email, String passwordHash, int count) {
+        System.out.println("Request 'remove_first' from " + email);
+        return deleteAuthenticated(
+                "DELETE FROM lab7 WHERE id IN (" +
+                        "SELECT id FROM lab7 WHERE user_id = (SELECT id FROM u) " +
+                        "ORDER BY size DESC, id DESC LIMIT ? FOR UPDATE SKIP LOCKED)",
+                email, passwordHash, count);
+    }
+
+    @Override
+    public boolean removeLast(String email, String passwordHash, int count) {
+        System.out.println("Request 'remove_last' from " + email);
+        return deleteAuthenticated(
+                "DELETE FROM lab7 WHERE id IN (" +
+                        "SELECT id FROM lab7 WHERE user_id = (SELECT id FROM u) " +
+                        "ORDER BY size ASC, id ASC LIMIT ? FOR UPDATE SKIP LOCKED)",
+                email, passwordHash, count);
+    }
+
+    private static CollectionElement readElement(ResultSet rs) throws SQLException {
+        String name = rs.getString("name");
+        double size = rs.getDouble("size");
+        double posX = rs.getDouble("position_x");
+        double posY = rs.getDouble("position_y");
+        Timestamp creationDate = rs.getTimestamp("creation_date");
+        return new CollectionElement(name, size, posX, posY)
+                .withCreationDate(creationDate.toLocalDateTime())
+                .withId(rs.getLong("id"));
+    }
+
+    // The element as it reads back from the table: REAL columns and microseconds in timestamps
+    private static CollectionElement stored(CollectionElement element, long id) {
+        return new CollectionElement(element.getName(), (float) element.getSize(),
+                (float) element.getPosition().getX(), (float) element.getPosition().getY())
+                .withCreationDate(element.getCreationDate().truncatedTo(ChronoUnit.MICROS))
+                .withId(id);
+    }
+
+    // Complete with the result of the commit, null if it failed.
+    // A change rejected by a full queue was not made, the rejection is passed on so the client is told to retry.
+    private static CompletableFuture<Long> committed(CompletableFuture<Long> commit) {
+        return commit.handle((result, e) -> {
+            if (e instanceof RejectedExecutionException) {
+                System.out.println("Rejected");
+                throw (RejectedExecutionException) e;
+            }
+            if (e != null) {
+                (e instanceof CompletionException ? e.getCause() : e).printStackTrace();
+                System.out.println("Error");
+                return null;
+            }
+            System.out.println("Success");
+            return result;
+        });
+    }
+
+    // Run the delete with the authenticated user available as u(id) in one round trip
+    private boolean deleteAuthenticated(String delete, String email, String passwordHash, Object... parameters) {
+        try (PooledConnection connection = pool.acquire()) {
+            PreparedStatement statement = connection.prepareStatement(
+                    "WITH u AS (SELECT id FROM lab7_users WHERE email = ? AND password = ?), " +
+                            "d AS (" + delete + " RETURNING 1) " +
+                            "SELECT (SELECT COUNT(*) FROM u), (SELECT COUNT(*) FROM d)");
+            statement.setString(1, email);
+            statement.setString(2, passwordHash);
+            for (int i = 0; i < parameters.length; i++) {
+                statement.setObject(i + 3, parameters[i]);
+            }
+            ResultSet rs = statement.executeQuery();
+            if (rs.next()) {
+                boolean result = rs.getInt(1) != 0;
+                System.out.println(result ? "Success" : "Not authenticated");
+                return result;
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        System.out.println("Error");
+        return false;
+    }
 }
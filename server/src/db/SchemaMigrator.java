@@ -0,0 +1,78 @@
+package db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+// Applies migrations that are not recorded in lab7_schema_version, each in its own transaction
+public class SchemaMigrator {
+    // Serializes servers that start at the same time against one database
+    private static final long LOCK_ID = 0x4C4142_37L;
+
+    private final List<Migration> migrations;
+
+    public SchemaMigrator(List<Migration> migrations) {
+        this.migrations = new ArrayList<>(migrations);
+        this.migrations.sort(Comparator.comparingInt(Migration::getVersion));
+    }
+
+    public void migrate(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS lab7_schema_version (" +
+                    "version INTEGER PRIMARY KEY," +
+                    "description VARCHAR NOT NULL," +
+                    "applied_at TIMESTAMPTZ NOT NULL DEFAULT now())");
+        }
+
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try {
+            for (Migration migration : migrations) {
+                apply(connection, migration);
+            }
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    private void apply(Connection connection, Migration migration) throws SQLException {
+        try {
+            try (PreparedStatement lock = connection.prepareStatement("SELECT pg_advisory_xact_lock(?)")) {
+                lock.setLong(1, LOCK_ID);
+                lock.execute();
+            }
+            try (PreparedStatement check = connection.prepareStatement(
+                    "SELECT 1 FROM lab7_schema_version WHERE version = ?")) {
+                check.setInt(1, migration.getVersion());
+                try (ResultSet rs = check.executeQuery()) {
+                    if (rs.next()) {
+                        connection.commit();
+                        return;
+                    }
+                }
+            }
+
+            System.out.println("Applying migration " + migration.getVersion() + ": " + migration.getDescription());
+            try (Statement statement = connection.createStatement()) {
+                for (String sql : migration.getStatements()) {
+                    statement.execute(sql);
+                }
+            }
+            try (PreparedStatement record = connection.prepareStatement(
+                    "INSERT INTO lab7_schema_version (version, description) VALUES (?, ?)")) {
+                record.setInt(1, migration.getVersion());
+                record.setString(2, migration.getDescription());
+                record.execute();
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw new SQLException("Migration " + migration.getVersion() + " failed", e);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package db;
+
+import collection.Area;
+import collection.CollectionElement;
+import collection.Position;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.LongStream;
+
+// Ids of the elements of a collection in a k-d tree by position, kept next to the collection and updated with it.
+// Leaves hold the ids and coordinates of up to LEAF_SIZE elements in arrays and are split at the median
+// of their wider axis when they overflow. Subtrees that removals left with few elements are merged back into a leaf.
+class SpatialIndex {
+    private static final int LEAF_SIZE = 32;
+
+    private static class Node {
+        // Columns of a leaf, null for inner nodes
+        private long[] ids = new long[4];
+        private double[] xs = new double[4];
+        private double[] ys = new double[4];
+        private boolean byX;
+        // Elements with the coordinate below it are on the left
+        private double split;
+        private Node left;
+        private Node right;
+        // Rows of a leaf, elements under an inner node
+        private int size = 0;
+        // A leaf over it is split
+        private int limit = LEAF_SIZE;
+
+        private boolean isLeaf() {
+            return ids != null;
+        }
+
+        private Node child(double x, double y) {
+            return (byX ? x : y) < split ? left : right;
+        }
+
+        private void append(long id, double x, double y) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                xs = Arrays.copyOf(xs, size * 2);
+                ys = Arrays.copyOf(ys, size * 2);
+            }
+            ids[size] = id;
+            xs[size] = x;
+            ys[size] = y;
+            size++;
+        }
+    }
+
+    // Closest elements found so far, the closest first
+    private static class Found {
+        private final long[] ids;
+        private final double[] distances;
+        private int size = 0;
+
+        private Found(int count) {
+            ids = new long[count];
+            distances = new double[count];
+        }
+
+        private boolean isFull() {
+            return size == ids.length;
+        }
+
+        private double farthest() {
+            return distances[size - 1];
+        }
+
+        // Equally distant elements are ordered by id
+        private void offer(long id, double distance) {
+            int row = size;
+            while (row > 0 && (distances[row - 1] > distance
+                    || distances[row - 1] == distance && ids[row - 1] > id)) {
+                row--;
+            }
+            if (row == ids.length) {
+                return;
+            }
+            int moved = Math.min(size, ids.length - 1) - row;
+            System.arraycopy(ids, row, ids, row + 1, moved);
+            System.arraycopy(distances, row, distances, row + 1, moved);
+            ids[row] = id;
+            distances[row] = distance;
+            size = Math.min(size + 1, ids.length);
+        }
+    }
+
+    private Node root = new Node();
+
+    void add(CollectionElement element) {
+        double x = element.getPosition().getX();
+        double y = element.getPosition().getY();
+        Node node = root;
+        while (!node.isLeaf()) {
+            node.size++;
+            node = node.child(x, y);
+        }
+        node.append(element.getId(), x, y);
+        if (node.size > node.limit) {
+            split(node);
+        }
+    }
+
+    // The element is found by its position and id
+    void remove(CollectionElement element) {
+        double x = element.getPosition().getX();
+        double y = element.getPosition().getY();
+        List<Node> path = new ArrayList<>();
+        Node node = root;
+        while (!node.isLeaf()) {
+            path.add(node);
+            node = node.child(x, y);
+        }
+        int row = 0;
+        while (row < node.size && node.ids[row] != element.getId()) {
+            row++;
+        }
+        if (row == node.size) {
+            return;
+        }
+        // The last row takes the place of the removed one
+        node.size--;
+        node.ids[row] = node.ids[node.size];
+        node.xs[row] = node.xs[node.size];
+        node.ys[row] = node.ys[node.size];
+        for (Node inner : path) {
+            inner.size--;
+        }
+        for (Node inner : path) {
+            if (inner.size <= LEAF_SIZE / 2) {
+                Node leaf = new Node();
+                collect(inner, leaf);
+                inner.ids = leaf.ids;
+                inner.xs = leaf.xs;
+                inner.ys = leaf.ys;
+                inner.left = inner.right = null;
+                inner.limit = LEAF_SIZE;
+                break;
+            }
+        }
+    }
+
+    void clear() {
+        root = new Node();
+    }
+
+    // Ids of the elements within the area in no particular order
+    long[] within(Area area) {
+        LongStream.Builder result = LongStream.builder();
+        within(root, area, result);
+        return result.build().toArray();
+    }
+
+    // Ids of up to count elements closest to the position, the closest first
+    long[] nearest(Position position, int count) {
+        if (count <= 0) {
+            return new long[0];
+        }
+        Found found = new Found(count);
+        nearest(root, position.getX(), position.getY(), found);
+        return Arrays.copyOf(found.ids, found.size);
+    }
+
+    private static void within(Node node, Area area, LongStream.Builder result) {
+        if (node.isLeaf()) {
+            for (int row = 0; row < node.size; row++) {
+                if (node.xs[row] >= area.getMinX() && node.xs[row] <= area.getMaxX()
+                        && node.ys[row] >= area.getMinY() && node.ys[row] <= area.getMaxY()) {
+                    result.add(node.ids[row]);
+                }
+            }
+            return;
+        }
+        double min = node.byX ? area.getMinX() : area.getMinY();
+        double max = node.byX ? area.getMaxX() : area.getMaxY();
+        if (min < node.split) {
+            within(node.left, area, result);
+        }
+        if (max >= node.split) {
+            within(node.right, area, result);
+        }
+    }
+
+    private static void nearest(Node node, double x, double y, Found found) {
+        if (node.isLeaf()) {
+            for (int row = 0; row < node.size; row++) {
+                double dx = node.xs[row] - x;
+                double dy = node.ys[row] - y;
+                // Squared, which orders the same
+                found.offer(node.ids[row], dx * dx + dy * dy);
+            }
+            return;
+        }
+        double offset = (node.byX ? x : y) - node.split;
+        nearest(offset < 0 ? node.left : node.right, x, y, found);
+        // Elements on the other side are at least the offset away
+        if (!found.isFull() || offset * offset <= found.farthest()) {
+            nearest(offset < 0 ? node.right : node.left, x, y, found);
+        }
+    }
+
+    private static void split(Node leaf) {
+        double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (int row = 0; row < leaf.size; row++) {
+            minX = Math.min(minX, leaf.xs[row]);
+            maxX = Math.max(maxX, leaf.xs[row]);
+            minY = Math.min(minY, leaf.ys[row]);
+            maxY = Math.max(maxY, leaf.ys[row]);
+        }
+        boolean byX = maxX - minX >= maxY - minY;
+        if (!splitAt(leaf, byX) && !splitAt(leaf, !byX)) {
+            // Elements at one position cannot be split, try again once the leaf doubles
+            leaf.limit = leaf.size * 2;
+        }
+    }
+
+    private static boolean splitAt(Node leaf, boolean byX) {
+        double[] coordinates = Arrays.copyOf(byX ? leaf.xs : leaf.ys, leaf.size);
+        Arrays.sort(coordinates);
+        int middle = coordinates.length / 2;
+        double split = coordinates[middle];
+        // Equal coordinates go right, so the left side must not start with the median
+        if (coordinates[0] == split) {
+            while (middle < coordinates.length && coordinates[middle] == split) {
+                middle++;
+            }
+            if (middle == coordinates.length) {
+                return false;
+            }
+            split = coordinates[middle];
+        }
+        // Coordinates that are not a number are sorted last and always go right
+        if (Double.isNaN(split)) {
+            return false;
+        }
+        Node left = new Node();
+        Node right = new Node();
+        for (int row = 0; row < leaf.size; row++) {
+            double coordinate = byX ? leaf.xs[row] : leaf.ys[row];
+            (coordinate < split ? left : right).append(leaf.ids[row], leaf.xs[row], leaf.ys[row]);
+        }
+        leaf.byX = byX;
+        leaf.split = split;
+        leaf.left = left;
+        leaf.right = right;
+        leaf.ids = null;
+        leaf.xs = null;
+        leaf.ys = null;
+        return true;
+    }
+
+    private static void collect(Node node, Node leaf) {
+        if (node.isLeaf()) {
+            for (int row = 0; row < node.size; row++) {
+                leaf.append(node.ids[row], node.xs[row], node.ys[row]);
+            }
+            return;
+        }
+        collect(node.left, leaf);
+        collect(node.right, leaf);
+    }
+}
@@ -0,0 +1,130 @@
+package db;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+// Append-only log in a memory-mapped file, mapped chunk by chunk as it grows.
+// Record: length of the data (4 bytes), CRC32 of the data (4 bytes), data.
+// Records never cross a chunk boundary, a length of -1 skips the rest of the chunk and zero ends the log.
+class WriteAheadLog implements AutoCloseable {
+    static final int CHUNK_SIZE = 16 << 20;
+    private static final int HEADER_SIZE = 8;
+    private static final int END_OF_CHUNK = -1;
+
+    private final FileChannel channel;
+    private final CRC32 crc = new CRC32();
+    private MappedByteBuffer chunk;
+    private long chunkStart = 0;
+    // Bytes appended and bytes known to be on disk
+    private long written = 0;
+    private long durable = 0;
+    private final Object syncLock = new Object();
+
+    WriteAheadLog(Path path) throws IOException {
+        channel = FileChannel.open(path,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        chunk = map(0);
+    }
+
+    // Return the position to pass to sync when the record has to be durable
+    synchronized long append(ByteBuffer data) throws IOException {
+        int length = data.remaining();
+        if (length == 0 || length > CHUNK_SIZE - HEADER_SIZE) {
+            throw new IOException("Record of " + length + " bytes does not fit into the log");
+        }
+        if (chunk.remaining() < HEADER_SIZE + length) {
+            if (chunk.remaining() >= 4) {
+                chunk.putInt(END_OF_CHUNK);
+            }
+            // Later chunks are forced separately, so this one has to be on disk before they are
+            chunk.force();
+            chunkStart += CHUNK_SIZE;
+            chunk = map(chunkStart);
+        }
+        crc.reset();
+        crc.update(data.duplicate());
+        chunk.putInt(length);
+        chunk.putInt((int) crc.getValue());
+        chunk.put(data);
+        written = chunkStart + chunk.position();
+        return written;
+    }
+
+    // Group commit: one thread forces everything appended so far while the others wait for it,
+    // then those still not covered force again together
+    void sync(long position) throws IOException {
+        synchronized (syncLock) {
+            if (durable >= position) {
+                return;
+            }
+            MappedByteBuffer target;
+            long end;
+            synchronized (this) {
+                target = chunk;
+                end = written;
+            }
+            target.force();
+            durable = end;
+        }
+    }
+
+    synchronized long size() {
+        return written;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (syncLock) {
+            synchronized (this) {
+                chunk.force();
+                durable = written;
+            }
+            channel.close();
+        }
+    }
+
+    private MappedByteBuffer map(long position) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, CHUNK_SIZE);
+        // Mapping grows the file, the new length has to survive a crash as well
+        channel.force(true);
+        return buffer;
+    }
+
+    // Pass the data of every record to the consumer in order.
+    // Replay stops at the end of the log or at the first torn record left by a crash.
+    static void replay(Path path, Consumer<ByteBuffer> consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            CRC32 crc = new CRC32();
+            for (long start = 0; start < size; start += CHUNK_SIZE) {
+                MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY,
+                        start, Math.min(CHUNK_SIZE, size - start));
+                while (chunk.remaining() >= HEADER_SIZE) {
+                    int length = chunk.getInt();
+                    if (length == END_OF_CHUNK) {
+                        break;
+                    }
+                    if (length <= 0 || length > chunk.remaining() - 4) {
+                        return;
+                    }
+                    int checksum = chunk.getInt();
+                    ByteBuffer data = chunk.slice();
+                    data.limit(length);
+                    crc.reset();
+                    crc.update(data.duplicate());
+                    if ((int) crc.getValue() != checksum) {
+                        return;
+                    }
+                    consumer.accept(data);
+                    chunk.position(chunk.position() + length);
+                }
+            }
+        }
+    }
+}
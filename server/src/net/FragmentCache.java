@@ -0,0 +1,68 @@
+package net;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Keeps recently fragmented responses so that lost fragments can be sent again on request
+public class FragmentCache {
+    public static class Entry {
+        private final SocketAddress address;
+        private final ByteBuffer message;
+        private final long expiresAt;
+
+        private Entry(SocketAddress address, ByteBuffer message, long expiresAt) {
+            this.address = address;
+            this.message = message;
+            this.expiresAt = expiresAt;
+        }
+
+        public SocketAddress getAddress() {
+            return address;
+        }
+
+        public ByteBuffer getMessage() {
+            return message.duplicate();
+        }
+    }
+
+    private final Map<Integer, Entry> entries = new LinkedHashMap<>();
+    private final long maxBytes;
+    private final long timeToLive;
+    private long bytes = 0;
+    private int nextId = 1;
+
+    public FragmentCache(long maxBytes, long timeToLive) {
+        this.maxBytes = maxBytes;
+        this.timeToLive = timeToLive;
+    }
+
+    public synchronized int put(SocketAddress address, ByteBuffer message) {
+        long now = System.currentTimeMillis();
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (bytes + message.limit() <= maxBytes && entry.expiresAt > now) {
+                break;
+            }
+            bytes -= entry.message.limit();
+            iterator.remove();
+        }
+
+        int id = nextId++;
+        entries.put(id, new Entry(address, message, now + timeToLive));
+        bytes += message.limit();
+        return id;
+    }
+
+    // Only the client that received the message may ask for its fragments
+    public synchronized Entry get(int id, SocketAddress address) {
+        Entry entry = entries.get(id);
+        if (entry == null || !entry.address.equals(address) || entry.expiresAt < System.currentTimeMillis()) {
+            return null;
+        }
+        return entry;
+    }
+}
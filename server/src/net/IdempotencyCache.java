@@ -0,0 +1,85 @@
+package net;
+
+import java.net.SocketAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+// Remembers responses to mutating requests, so a retransmitted request is answered without executing it twice
+public class IdempotencyCache {
+    private static class Key {
+        private final SocketAddress address;
+        private final long requestId;
+
+        private Key(SocketAddress address, long requestId) {
+            this.address = address;
+            this.requestId = requestId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return requestId == key.requestId && address.equals(key.address);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(address, requestId);
+        }
+    }
+
+    public static class Entry {
+        private final long createdAt = System.currentTimeMillis();
+        private PacketMessage response;
+
+        // Null while the original request is still being executed
+        public PacketMessage getResponse() {
+            return response;
+        }
+    }
+
+    private final Map<Key, Entry> entries = new LinkedHashMap<>();
+    private final int maxEntries;
+    private final long timeToLive;
+
+    public IdempotencyCache(int maxEntries, long timeToLive) {
+        this.maxEntries = maxEntries;
+        this.timeToLive = timeToLive;
+    }
+
+    // Return null and remember the request if it is new, otherwise return the entry of the first attempt
+    public synchronized Entry begin(SocketAddress address, long requestId) {
+        Key key = new Key(address, requestId);
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            return entry;
+        }
+
+        long now = System.currentTimeMillis();
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry oldest = iterator.next();
+            if (entries.size() < maxEntries && oldest.createdAt + timeToLive > now) {
+                break;
+            }
+            iterator.remove();
+        }
+
+        entries.put(key, new Entry());
+        return null;
+    }
+
+    public synchronized void complete(SocketAddress address, long requestId, PacketMessage response) {
+        Entry entry = entries.get(new Key(address, requestId));
+        if (entry != null) {
+            entry.response = response;
+        }
+    }
+
+    // Forget a request that was not executed, so that its retransmission is executed
+    public synchronized void abort(SocketAddress address, long requestId) {
+        entries.remove(new Key(address, requestId));
+    }
+}
@@ -0,0 +1,217 @@
+package net;
+
+import db.Mail;
+import db.MailQueue;
+
+import javax.mail.*;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+// Sends mail queued in the storage on a few threads sharing one SMTP session,
+// each thread keeps its connection to the SMTP server between messages.
+// Failed mail is sent again after an exponential backoff and given up on after maxAttempts.
+public class MailSender implements AutoCloseable {
+    // Mail claimed by a server that stopped before sending it is claimed again after this
+    private static final long LEASE = 5 * 60_000;
+    private static final long MIN_BACKOFF = 10_000;
+    private static final long MAX_BACKOFF = 60 * 60_000;
+    private static final int SMTP_TIMEOUT = 10_000;
+
+    private final MailQueue queue;
+    private final Session session;
+    private final InternetAddress from;
+    private final int threads;
+    private final int maxAttempts;
+    private final long pollInterval;
+    private final Consumer<Mail> onDead;
+
+    private final ExecutorService senders;
+    private final ThreadLocal<Transport> transport = new ThreadLocal<>();
+    private final List<Transport> transports = new ArrayList<>();
+    private final Thread poller;
+    private final Object wakeUp = new Object();
+    private boolean woken = false;
+    private volatile boolean closed = false;
+
+    public MailSender(MailQueue queue, Session session, InternetAddress from,
+                      int threads, int maxAttempts, long pollInterval, Consumer<Mail> onDead) {
+        this.queue = queue;
+        this.session = session;
+        this.from = from;
+        this.threads = threads;
+        this.maxAttempts = maxAttempts;
+        this.pollInterval = pollInterval;
+        this.onDead = onDead;
+
+        AtomicInteger counter = new AtomicInteger();
+        senders = Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "mail-sender-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        poller = new Thread(this::poll, "mail-poller");
+        poller.setDaemon(true);
+        poller.start();
+    }
+
+    // SMTP session for the server, without authentication if the user is empty
+    public static Session createSession(String host, int port, String user, String password, boolean startTls) {
+        Properties prop = new Properties();
+        prop.put("mail.smtp.host", host);
+        prop.put("mail.smtp.port", String.valueOf(port));
+        prop.put("mail.smtp.auth", String.valueOf(!user.isEmpty()));
+        prop.put("mail.smtp.starttls.enable", String.valueOf(startTls));
+        // A hanging SMTP server must not hold a sender forever
+        prop.put("mail.smtp.connectiontimeout", String.valueOf(SMTP_TIMEOUT));
+        prop.put("mail.smtp.timeout", String.valueOf(SMTP_TIMEOUT));
+        prop.put("mail.smtp.writetimeout", String.valueOf(SMTP_TIMEOUT));
+        if (user.isEmpty()) {
+            return Session.getInstance(prop);
+        }
+        return Session.getInstance(prop, new Authenticator() {
+            protected PasswordAuthentication getPasswordAuthentication() {
+                return new PasswordAuthentication(user, password);
+            }
+        });
+    }
+
+    // New mail was queued, send it without waiting for the next poll
+    public void wakeUp() {
+        synchronized (wakeUp) {
+            woken = true;
+            wakeUp.notify();
+        }
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        closed = true;
+        poller.interrupt();
+        poller.join(SMTP_TIMEOUT);
+        senders.shutdown();
+        senders.awaitTermination(SMTP_TIMEOUT, TimeUnit.MILLISECONDS);
+        synchronized (transports) {
+            for (Transport connected : transports) {
+                try {
+                    connected.close();
+                } catch (MessagingException ignored) {
+                }
+            }
+        }
+    }
+
+    // Claim as much mail as the senders can take at once and wait until it is sent
+    private void poll() {
+        while (!closed) {
+            try {
+                List<Mail> due = queue.claimMail(threads, LEASE);
+                if (due.isEmpty()) {
+                    synchronized (wakeUp) {
+                        if (!woken) {
+                            wakeUp.wait(pollInterval);
+                        }
+                        woken = false;
+                    }
+                    continue;
+                }
+                List<Callable<Void>> tasks = new ArrayList<>();
+                for (Mail mail : due) {
+                    tasks.add(() -> {
+                        send(mail);
+                        return null;
+                    });
+                }
+                for (Future<Void> sent : senders.invokeAll(tasks)) {
+                    try {
+                        sent.get();
+                    } catch (ExecutionException e) {
+                        e.getCause().printStackTrace();
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void send(Mail mail) {
+        try {
+            Message message = new MimeMessage(session);
+            message.setFrom(from);
+            message.setRecipients(Message.RecipientType.TO, InternetAddress.parse(mail.getRecipient()));
+            message.setSubject(mail.getSubject());
+            message.setText(mail.getText());
+            message.saveChanges();
+            connectedTransport().sendMessage(message, message.getAllRecipients());
+            queue.mailSent(mail);
+            System.out.println("Sent " + mail);
+        } catch (AddressException e) {
+            dead(mail, e);
+        } catch (MessagingException e) {
+            if (e instanceof SendFailedException && hasInvalidAddresses((SendFailedException) e)) {
+                // The server refused the recipient, asking again will not help
+                dead(mail, e);
+                return;
+            }
+            // The connection may be broken, the next mail connects again
+            disconnect();
+            if (mail.getAttempts() >= maxAttempts) {
+                dead(mail, e);
+                return;
+            }
+            long delay = Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(mail.getAttempts() - 1, 20));
+            System.out.println("Could not send " + mail + ", retrying in " + delay + " ms: " + e.getMessage());
+            queue.mailFailed(mail, delay, e.toString());
+        }
+    }
+
+    private void dead(Mail mail, MessagingException e) {
+        System.out.println("Gave up on " + mail + " after " + mail.getAttempts() + " attempts: " + e.getMessage());
+        queue.mailDead(mail, e.toString());
+        onDead.accept(mail);
+    }
+
+    private static boolean hasInvalidAddresses(SendFailedException e) {
+        return e.getInvalidAddresses() != null && e.getInvalidAddresses().length > 0;
+    }
+
+    private Transport connectedTransport() throws MessagingException {
+        Transport current = transport.get();
+        if (current != null && current.isConnected()) {
+            return current;
+        }
+        if (current == null) {
+            current = session.getTransport("smtp");
+            transport.set(current);
+            synchronized (transports) {
+                transports.add(current);
+            }
+        }
+        current.connect();
+        return current;
+    }
+
+    private void disconnect() {
+        Transport current = transport.get();
+        if (current != null) {
+            try {
+                current.close();
+            } catch (MessagingException ignored) {
+            }
+        }
+    }
+}
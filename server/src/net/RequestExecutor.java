@@ -0,0 +1,77 @@
+package net;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+
+public class RequestExecutor implements AutoCloseable {
+    public enum Mode {
+        POOL,
+        VIRTUAL,
+    }
+
+    private final ExecutorService executor;
+    private final Semaphore permits;
+
+    public RequestExecutor(Mode mode, int workers, int queueDepth) {
+        ExecutorService virtualExecutor = mode == Mode.VIRTUAL ? newVirtualExecutor() : null;
+        if (virtualExecutor != null) {
+            executor = virtualExecutor;
+            // Virtual threads are not pooled, so the queue depth bounds the number of requests in flight
+            permits = new Semaphore(workers + queueDepth);
+        } else {
+            executor = new ThreadPoolExecutor(workers, workers,
+                    0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueDepth),
+                    new ThreadPoolExecutor.AbortPolicy());
+            permits = null;
+        }
+    }
+
+    // Return false if the request was rejected because the queue is full
+    public boolean submit(Runnable task) {
+        if (permits == null) {
+            try {
+                executor.execute(task);
+                return true;
+            } catch (RejectedExecutionException e) {
+                return false;
+            }
+        }
+
+        if (!permits.tryAcquire()) {
+            return false;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+            executor.shutdownNow();
+        }
+    }
+
+    // Virtual threads appeared in Java 21, so they are looked up reflectively to keep older runtimes working
+    private static ExecutorService newVirtualExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads are not supported by this runtime, using thread pool");
+            return null;
+        }
+    }
+}
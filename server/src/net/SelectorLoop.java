@@ -0,0 +1,68 @@
+package net;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.function.BooleanSupplier;
+
+// Receive loop over one non-blocking channel, draining every queued datagram on each wakeup
+public class SelectorLoop implements Runnable {
+    public interface Handler {
+        void handle(DatagramChannel channel, ByteBuffer datagram, SocketAddress remoteAddress) throws IOException;
+    }
+
+    private final DatagramChannel channel;
+    private final BufferPool bufferPool;
+    private final Handler handler;
+    private final BooleanSupplier shouldRun;
+
+    public SelectorLoop(DatagramChannel channel, BufferPool bufferPool, Handler handler, BooleanSupplier shouldRun) {
+        this.channel = channel;
+        this.bufferPool = bufferPool;
+        this.handler = handler;
+        this.shouldRun = shouldRun;
+    }
+
+    @Override
+    public void run() {
+        try (Selector selector = Selector.open()) {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+
+            while (shouldRun.getAsBoolean() && channel.isOpen()) {
+                if (selector.select(1000) == 0) {
+                    continue;
+                }
+                selector.selectedKeys().clear();
+                drain();
+            }
+        } catch (IOException e) {
+            if (channel.isOpen()) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void drain() throws IOException {
+        while (true) {
+            ByteBuffer buffer = bufferPool.acquire();
+            try {
+                SocketAddress remoteAddress = channel.receive(buffer);
+                if (remoteAddress == null) {
+                    return;
+                }
+                buffer.flip();
+                try {
+                    handler.handle(channel, buffer, remoteAddress);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            } finally {
+                bufferPool.release(buffer);
+            }
+        }
+    }
+}
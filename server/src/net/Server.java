@@ -1,23 +1,41 @@
 package net;
 
 import cli.InvalidCommandLineArgumentException;
+import collection.Area;
 import collection.CollectionElement;
+import collection.ElementFilter;
+import collection.NearestRequest;
+import collection.PageRequest;
+import db.AsyncDatabase;
+import db.CachingDatabase;
+import db.ChangeListener;
+import db.ConnectionPool;
 import db.Database;
+import db.EmbeddedDatabase;
+import db.ExecutorAsyncDatabase;
+import db.Mail;
+import db.MailQueue;
 import db.PostgreSQLDatabase;
 import utils.Utils;
 
-import javax.mail.*;
-import javax.mail.MessagingException;
-import javax.mail.Session;
+import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
-import javax.mail.internet.MimeMessage;
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
+import java.nio.file.Paths;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 public class Server implements Runnable, AutoCloseable {
     public static void main(String[] args) {
@@ -25,21 +43,85 @@ public class Server implements Runnable, AutoCloseable {
             server.run();
         } catch (InvalidCommandLineArgumentException e) {
             System.out.println("Usage: server <port> <uri> <user>");
+            System.out.println("       server <port> embedded:<directory>");
             System.out.println("<port> -- integer between 1024 and 65 535");
             System.out.println("<uri> -- URI of the database");
             System.out.println("<user> -- login for localhost database");
+            System.out.println("embedded:<directory> -- keep the data in the directory without a database server");
+            System.out.println("Options (system properties):");
+            System.out.println("-Dlab7.executor=pool|virtual -- how requests are executed, pool by default");
+            System.out.println("-Dlab7.workers=<n> -- number of worker threads, number of cores by default");
+            System.out.println("-Dlab7.queue=<n> -- number of requests waiting for a worker before rejection");
+            System.out.println("-Dlab7.fragment.size=<bytes> -- payload of one fragment of a large response");
+            System.out.println("-Dlab7.page.max=<n> -- maximum number of elements in one page of show " +
+                    "and in one answer of nearest");
+            System.out.println("-Dlab7.session.ttl=<ms> -- idle time after which a session expires");
+            System.out.println("-Dlab7.db.pool.min=<n>, -Dlab7.db.pool.max=<n> -- database connection pool size");
+            System.out.println("-Dlab7.db.pool.timeout=<ms> -- time to wait for a free database connection");
+            System.out.println("-Dlab7.db.pool.idle=<ms> -- idle time after which extra connections are closed");
+            System.out.println("-Dlab7.db.batch.window=<ms> -- time to gather additions and removals into one " +
+                    "transaction, 0 to commit each separately");
+            System.out.println("-Dlab7.db.batch.size=<n> -- maximum number of changes committed together");
+            System.out.println("-Dlab7.db.threads=<n> -- threads calling the database, pool size by default");
+            System.out.println("-Dlab7.db.queue=<n> -- number of database operations waiting before rejection");
+            System.out.println("-Dlab7.cache.memory=<MiB> -- memory for collections of active users, 0 to disable the cache");
+            System.out.println("-Dlab7.cache.users=<n> -- maximum number of users with cached collections");
+            System.out.println("-Dlab7.cache.listen=<true|false> -- keep the cache coherent with other servers " +
+                    "sharing the database, true by default");
+            System.out.println("-Dlab7.embedded.checkpoint=<MiB> -- log size after which the embedded storage " +
+                    "writes a snapshot");
+            System.out.println("-Dlab7.embedded.checkpoint.interval=<ms> -- time after which the embedded storage " +
+                    "writes a snapshot of new changes");
+            System.out.println("-Dlab7.sockets=<n> -- number of SO_REUSEPORT sockets with own receive loops, 1 by default");
+            System.out.println("-Dlab7.mail.host=<host>, -Dlab7.mail.port=<port> -- SMTP server for registration mail");
+            System.out.println("-Dlab7.mail.user=<user>, -Dlab7.mail.password=<password> -- SMTP login, " +
+                    "empty user to send without authentication");
+            System.out.println("-Dlab7.mail.starttls=<true|false> -- use STARTTLS, true by default");
+            System.out.println("-Dlab7.mail.from=<address> -- sender address of registration mail");
+            System.out.println("-Dlab7.mail.threads=<n> -- number of threads sending mail");
+            System.out.println("-Dlab7.mail.attempts=<n> -- attempts to send a mail before giving up on it");
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    private boolean shouldRun = true;
+    private static final String EMBEDDED_PREFIX = "embedded:";
+    // Each condition of a filter is a clause of the query
+    private static final int MAX_FILTER_TERMS = 64;
+
+    // Clients using Java serialization were released with these heads and fail to read any other
+    private static final Set<PacketMessage.Head> LEGACY_HEADS =
+            EnumSet.range(PacketMessage.Head.INFO, PacketMessage.Head.LOGIN);
+
+    private static final Set<PacketMessage.Head> MUTATING_HEADS = EnumSet.of(
+            PacketMessage.Head.ADD,
+            PacketMessage.Head.REMOVE,
+            PacketMessage.Head.REMOVE_FIRST,
+            PacketMessage.Head.REMOVE_LAST,
+            PacketMessage.Head.IMPORT,
+            PacketMessage.Head.REGISTER);
+
+    private volatile boolean shouldRun = true;
 
     private final Database database;
-    private DatagramChannel channel;
+    private final AsyncDatabase asyncDatabase;
+    private final MailQueue mailQueue;
+    private final MailSender mailSender;
+    // Set when the cache has to follow changes made by other servers
+    private ChangeListener changeListener;
+    private final RequestExecutor executor;
+    private final BufferPool bufferPool;
+    private final FragmentCache fragmentCache;
+    private final IdempotencyCache idempotencyCache;
+    private final SessionManager sessions;
+    private final int fragmentSize;
+    private final int maxPageSize;
+    private final MessageProcessor messageProcessor = new MessageProcessor();
+    private final List<DatagramChannel> channels = new ArrayList<>();
 
     public Server(String[] args) throws IOException, SQLException, InvalidCommandLineArgumentException {
-        if (args.length < 3) {
+        boolean embedded = args.length >= 2 && args[1].startsWith(EMBEDDED_PREFIX);
+        if (args.length < (embedded ? 2 : 3)) {
             throw new InvalidCommandLineArgumentException();
         }
 
@@ -54,116 +136,545 @@ public class Server implements Runnable, AutoCloseable {
             throw new InvalidCommandLineArgumentException();
         }
 
-        String password = new String(System.console().readPassword("Password: "));
-//        String password = "";
-        database = new PostgreSQLDatabase(args[1], args[2], password);
+        RequestExecutor.Mode mode;
+        try {
+            mode = RequestExecutor.Mode.valueOf(System.getProperty("lab7.executor", "pool").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new InvalidCommandLineArgumentException();
+        }
+        int workers = Integer.getInteger("lab7.workers", Runtime.getRuntime().availableProcessors());
+        int queueDepth = Integer.getInteger("lab7.queue", 1024);
+        fragmentSize = Integer.getInteger("lab7.fragment.size", 8192);
+        maxPageSize = Integer.getInteger("lab7.page.max", 1000);
+        if (workers < 1 || queueDepth < 1 || fragmentSize < 512 || fragmentSize > 0x10000 - Fragments.HEADER_SIZE
+                || maxPageSize < 1) {
+            throw new InvalidCommandLineArgumentException();
+        }
+
+        long cacheMemory = Long.getLong("lab7.cache.memory", 64L);
+        int cacheUsers = Integer.getInteger("lab7.cache.users", 10_000);
+        long checkpointSize = Long.getLong("lab7.embedded.checkpoint", 64L);
+        long checkpointInterval = Long.getLong("lab7.embedded.checkpoint.interval", 600_000L);
+        if (cacheMemory < 0 || cacheUsers < 1 || checkpointSize < 1 || checkpointInterval < 1) {
+            throw new InvalidCommandLineArgumentException();
+        }
+        int mailThreads = Integer.getInteger("lab7.mail.threads", 2);
+        int mailAttempts = Integer.getInteger("lab7.mail.attempts", 8);
+        InternetAddress mailFrom;
+        try {
+            mailFrom = new InternetAddress(System.getProperty("lab7.mail.from", "from@gmail.com"), true);
+        } catch (AddressException e) {
+            throw new InvalidCommandLineArgumentException();
+        }
+        if (mailThreads < 1 || mailAttempts < 1) {
+            throw new InvalidCommandLineArgumentException();
+        }
+
+        if (embedded) {
+            // Collections are in memory already, so there is nothing to cache
+            EmbeddedDatabase storage = new EmbeddedDatabase(Paths.get(args[1].substring(EMBEDDED_PREFIX.length())),
+                    checkpointSize << 20, checkpointInterval);
+            database = storage;
+            mailQueue = storage;
+        } else {
+            String password = new String(System.console().readPassword("Password: "));
+//            String password = "";
+            ConnectionPool pool = new ConnectionPool(args[1], args[2], password,
+                    Integer.getInteger("lab7.db.pool.min", 1),
+                    Integer.getInteger("lab7.db.pool.max", 10),
+                    Long.getLong("lab7.db.pool.timeout", 5_000L),
+                    Long.getLong("lab7.db.pool.idle", 60_000L));
+            PostgreSQLDatabase storage = new PostgreSQLDatabase(pool,
+                    Long.getLong("lab7.db.batch.window", 2L),
+                    Integer.getInteger("lab7.db.batch.size", 500));
+            mailQueue = storage;
+            if (cacheMemory > 0) {
+                CachingDatabase cache = new CachingDatabase(storage, cacheUsers, cacheMemory << 20);
+                // Other servers may change the same collections
+                if (Boolean.parseBoolean(System.getProperty("lab7.cache.listen", "true"))) {
+                    changeListener = new ChangeListener(pool, cache);
+                }
+                database = cache;
+            } else {
+                database = storage;
+            }
+        }
+
+        int sockets = Integer.getInteger("lab7.sockets", 1);
+        if (sockets < 1) {
+            throw new InvalidCommandLineArgumentException();
+        }
+        SocketOption<Boolean> reusePort = sockets > 1 ? reusePortOption() : null;
+        if (sockets > 1 && reusePort == null) {
+            System.out.println("SO_REUSEPORT is not supported, using one socket");
+            sockets = 1;
+        }
+        for (int i = 0; i < sockets; i++) {
+            DatagramChannel channel = DatagramChannel.open();
+            channels.add(channel);
+            if (reusePort != null) {
+                channel.setOption(reusePort, true);
+            }
+            channel.bind(new InetSocketAddress(port));
+        }
+
+        // Storage is called from its own threads, as many as there are connections by default
+        int dbThreads = Integer.getInteger("lab7.db.threads",
+                embedded ? workers : Integer.getInteger("lab7.db.pool.max", 10));
+        int dbQueue = Integer.getInteger("lab7.db.queue", 1024);
+        if (dbThreads < 1 || dbQueue < 1) {
+            throw new InvalidCommandLineArgumentException();
+        }
+        asyncDatabase = new ExecutorAsyncDatabase(database, dbThreads, dbQueue);
 
-        channel = DatagramChannel.open();
-        channel.bind(new InetSocketAddress(port));
+        executor = new RequestExecutor(mode, workers, queueDepth);
+        // One buffer per worker and storage thread for responses plus one per receive loop
+        bufferPool = new BufferPool(0x10000, workers + dbThreads + sockets);
+        fragmentCache = new FragmentCache(Long.getLong("lab7.fragment.cache", 64L << 20), 30_000);
+        idempotencyCache = new IdempotencyCache(Integer.getInteger("lab7.idempotency.cache", 65_536), 60_000);
+        sessions = new SessionManager(Long.getLong("lab7.session.ttl", 30 * 60 * 1000L));
+        // Registration only queues the mail with the password, it is sent in background
+        mailSender = new MailSender(mailQueue,
+                MailSender.createSession(
+                        System.getProperty("lab7.mail.host", "smtp.gmail.com"),
+                        Integer.getInteger("lab7.mail.port", 587),
+                        System.getProperty("lab7.mail.user", "itmop3113lab7bot@gmail.com"),
+                        System.getProperty("lab7.mail.password", "p3113lab7bot"),
+                        Boolean.parseBoolean(System.getProperty("lab7.mail.starttls", "true"))),
+                mailFrom, mailThreads, mailAttempts, 10_000,
+                mail -> System.out.println("Password --> " + mail.getText()));
     }
 
     @Override
     public void close() throws Exception {
-        channel.close();
-        database.close();
+        for (DatagramChannel channel : channels) {
+            channel.close();
+        }
+        executor.close();
+        if (changeListener != null) {
+            changeListener.close();
+        }
+        mailSender.close();
+        // Closes the database after the queued operations
+        asyncDatabase.close();
     }
 
     public void run() {
-        MessageProcessor messageProcessor = new MessageProcessor();
         messageProcessor.setRequestProcessor(PacketMessage.Head.REGISTER, msg -> {
             String email = msg.getBody().toString();
             return new PacketMessage(false, PacketMessage.Head.REGISTER,
                     (createPassword(email) ? "OK" : "failed"));
         });
-        messageProcessor.setRequestProcessor(PacketMessage.Head.LOGIN, msg -> {
-            return new PacketMessage(false, PacketMessage.Head.LOGIN, authorize(msg.getLogin(), msg.getPasswordHash()));
-        });
-        messageProcessor.setRequestProcessor(PacketMessage.Head.INFO, this::infoMessage);
-        messageProcessor.setRequestProcessor(PacketMessage.Head.REMOVE_FIRST, msg -> {
-            database.removeFirst(database.getUserId(msg.getLogin(), msg.getPasswordHash()));
-            return null;
-        });
-        messageProcessor.setRequestProcessor(PacketMessage.Head.REMOVE_LAST, msg -> {
-            database.removeLast(database.getUserId(msg.getLogin(), msg.getPasswordHash()));
-            return null;
-        });
-        messageProcessor.setRequestProcessor(PacketMessage.Head.ADD, msg -> {
-            if (msg.getBody() instanceof CollectionElement) {
-                database.addElement((CollectionElement) msg.getBody(),
-                        database.getUserId(msg.getLogin(), msg.getPasswordHash()));
+        messageProcessor.setAsyncRequestProcessor(PacketMessage.Head.LOGIN, this::loginMessage);
+        messageProcessor.setRequestProcessor(PacketMessage.Head.LOGOUT, msg -> {
+            if (msg.getSessionToken() != null) {
+                sessions.revoke(msg.getSessionToken());
             }
-            return null;
+            return ack(msg, true);
         });
-        messageProcessor.setRequestProcessor(PacketMessage.Head.REMOVE, msg -> {
-            if (msg.getBody() instanceof CollectionElement) {
-                database.removeElement((CollectionElement) msg.getBody(),
-                        database.getUserId(msg.getLogin(), msg.getPasswordHash()));
-            }
-            return null;
-        });
-        messageProcessor.setRequestProcessor(PacketMessage.Head.SHOW, this::showMessage);
+        messageProcessor.setAsyncRequestProcessor(PacketMessage.Head.INFO, authenticated(this::infoMessage));
+        messageProcessor.setAsyncRequestProcessor(PacketMessage.Head.REMOVE_FIRST, mutation(
+                (msg, userId) -> asyncDatabase.removeFirst(userId, removeCount(msg)),
+                msg -> asyncDatabase.removeFirst(msg.getLogin(), msg.getPasswordHash(), removeCount(msg))));
+        messageProcessor.setAsyncRequestProcessor(PacketMessage.Head.REMOVE_LAST, mutation(
+                (msg, userId) -> asyncDatabase.removeLast(userId, removeCount(msg)),
+                msg -> asyncDatabase.removeLast(msg.getLogin(), msg.getPasswordHash(), removeCount(msg))));
+        messageProcessor.setAsyncRequestProcessor(PacketMessage.Head.ADD, withElement(mutation(
+                (msg, userId) -> asyncDatabase.addElement((CollectionElement) msg.getBody(), userId),
+                msg -> asyncDatabase.addElement((CollectionElement) msg.getBody(),
+                        msg.getLogin(), msg.getPasswordHash()))));
+        messageProcessor.setAsyncRequestProcessor(PacketMessage.Head.REMOVE, withElement(mutation(
+                (msg, userId) -> asyncDatabase.removeElement((CollectionElement) msg.getBody(), userId),
+                msg -> asyncDatabase.removeElement((CollectionElement) msg.getBody(),
+                        msg.getLogin(), msg.getPasswordHash()))));
+        messageProcessor.setAsyncRequestProcessor(PacketMessage.Head.IMPORT, withElements(mutation(
+                (msg, userId) -> asyncDatabase.addElements(elements(msg), userId),
+                msg -> asyncDatabase.addElements(elements(msg), msg.getLogin(), msg.getPasswordHash()))));
+        messageProcessor.setAsyncRequestProcessor(PacketMessage.Head.SHOW, authenticated(this::showMessage));
+        messageProcessor.setAsyncRequestProcessor(PacketMessage.Head.CHANGES, authenticated(this::changesMessage));
+        messageProcessor.setAsyncRequestProcessor(PacketMessage.Head.WITHIN, authenticated(this::withinMessage));
+        messageProcessor.setAsyncRequestProcessor(PacketMessage.Head.NEAREST, authenticated(this::nearestMessage));
+        messageProcessor.setAsyncRequestProcessor(PacketMessage.Head.FILTER, authenticated(this::filterMessage));
         messageProcessor.setRequestProcessor(PacketMessage.Head.STOP, msg -> {
             shouldRun = false;
             return null;
         });
 
-        while (shouldRun) {
-            ByteBuffer buffer = ByteBuffer.allocate(0x10000);
-            SocketAddress remoteAddress;
+        if (channels.size() == 1) {
+            receive(channels.get(0));
+            return;
+        }
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < channels.size(); i++) {
+            Thread thread = new Thread(new SelectorLoop(channels.get(i), bufferPool, this::handleDatagram,
+                    () -> shouldRun), "receive-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
 
+    private void receive(DatagramChannel channel) {
+        while (shouldRun) {
+            ByteBuffer buffer = bufferPool.acquire();
             try {
-                remoteAddress = channel.receive(buffer);
-            } catch (IOException e) {
-                continue;
+                SocketAddress remoteAddress = channel.receive(buffer);
+                buffer.flip();
+                handleDatagram(channel, buffer, remoteAddress);
+            } catch (IOException ignored) {
+            } finally {
+                bufferPool.release(buffer);
             }
+        }
+    }
 
-            byte[] bytes = buffer.array();
-            InputStream inputStream = new ByteArrayInputStream(bytes);
+    // Decode a datagram on the receiving thread and hand the request over to the executor
+    private void handleDatagram(DatagramChannel channel, ByteBuffer buffer, SocketAddress remoteAddress)
+            throws IOException {
+        if (Fragments.isNack(buffer)) {
+            resendFragments(channel, buffer, remoteAddress);
+            return;
+        }
+        // Answer in the format the client used, so clients that only know serialization keep working
+        WireFormat format = WireFormat.detect(buffer);
+        PacketMessage request = decodeRequest(buffer, format);
+
+        if (request == null || !request.isRequest()) {
+            return;
+        }
 
-            PacketMessage request;
+        boolean idempotent = request.getRequestId() != 0 && MUTATING_HEADS.contains(request.getHead());
+        if (idempotent) {
+            IdempotencyCache.Entry entry = idempotencyCache.begin(remoteAddress, request.getRequestId());
+            if (entry != null) {
+                // A retransmission: replay the stored response, or drop it while the first attempt runs
+                if (entry.getResponse() != null) {
+                    sendResponse(entry.getResponse(), channel, remoteAddress, format);
+                }
+                return;
+            }
+        }
 
-            try (ObjectInputStream oi = new ObjectInputStream(inputStream)) {
-                Object obj = oi.readObject();
-                if (obj instanceof PacketMessage) {
-                    request = (PacketMessage) obj;
+        if (messageProcessor.hasAsyncRequestProcessor(request.getHead())) {
+            // Storage requests do not hold a worker, the thread completing them sends the response
+            messageProcessor.processAsync(request).whenComplete((response, e) -> {
+                Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                if (cause == null) {
+                    respond(request, response, idempotent, channel, remoteAddress, format);
+                } else if (cause instanceof RejectedExecutionException) {
+                    rejectBusy(request, idempotent, channel, remoteAddress, format);
                 } else {
-                    continue;
+                    cause.printStackTrace();
+                    respond(request, null, idempotent, channel, remoteAddress, format);
                 }
-            } catch (IOException | ClassNotFoundException e) {
-                e.printStackTrace();
-                continue;
+            });
+            return;
+        }
+
+        boolean accepted = executor.submit(() -> respond(request, messageProcessor.process(request),
+                idempotent, channel, remoteAddress, format));
+        if (!accepted) {
+            rejectBusy(request, idempotent, channel, remoteAddress, format);
+        }
+    }
+
+    private void respond(PacketMessage request, PacketMessage response, boolean idempotent,
+                         DatagramChannel channel, SocketAddress remoteAddress, WireFormat format) {
+        if (response != null) {
+            response.setRequestId(request.getRequestId());
+            if (idempotent) {
+                idempotencyCache.complete(remoteAddress, request.getRequestId(), response);
             }
+            sendResponse(response, channel, remoteAddress, format);
+        } else if (idempotent) {
+            idempotencyCache.abort(remoteAddress, request.getRequestId());
+        }
+    }
 
-            if (!request.isRequest()) {
-                continue;
+    private void rejectBusy(PacketMessage request, boolean idempotent,
+                            DatagramChannel channel, SocketAddress remoteAddress, WireFormat format) {
+        if (idempotent) {
+            idempotencyCache.abort(remoteAddress, request.getRequestId());
+        }
+        PacketMessage response = new PacketMessage(false, PacketMessage.Head.BUSY, request.getHead());
+        response.setRequestId(request.getRequestId());
+        sendResponse(response, channel, remoteAddress, format);
+    }
+
+    // SO_REUSEPORT appeared in Java 9, so it is looked up reflectively to keep language level 8
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePortOption() {
+        try {
+            SocketOption<Boolean> option =
+                    (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+            try (DatagramChannel probe = DatagramChannel.open()) {
+                return probe.supportedOptions().contains(option) ? option : null;
             }
+        } catch (ReflectiveOperationException | IOException e) {
+            return null;
+        }
+    }
+
+    // Clients that do not set request ids do not expect acknowledgements
+    private PacketMessage ack(PacketMessage msg, boolean success) {
+        if (msg.getRequestId() == 0) {
+            return null;
+        }
+        return new PacketMessage(false, msg.getHead(), success);
+    }
+
+    // Decode only the received bytes, the rest of the pooled buffer may contain garbage
+    private PacketMessage decodeRequest(ByteBuffer buffer, WireFormat format) {
+        try {
+            return format.decode(buffer);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
 
-            new Thread(() -> {
-                PacketMessage response = messageProcessor.process(request);
-                if (response == null) {
-                    return;
+    private void sendResponse(PacketMessage response, DatagramChannel channel, SocketAddress remoteAddress,
+                              WireFormat format) {
+        if (format == WireFormat.SERIALIZED && !LEGACY_HEADS.contains(response.getHead())) {
+            response = legacyRefusal(response);
+            if (response == null) {
+                return;
+            }
+        }
+        ByteBuffer buffer = bufferPool.acquire();
+        try {
+            try {
+                format.encode(response, buffer);
+            } catch (BufferOverflowException e) {
+                if (format == WireFormat.SERIALIZED) {
+                    // Legacy clients cannot put fragments together
+                    sendResponse(legacyText(response.getHead(), response.getRequestId(),
+                            "Response is too large for this client, update the client to receive it"),
+                            channel, remoteAddress, format);
+                } else {
+                    sendFragmented(response, channel, remoteAddress, format);
                 }
+                return;
+            }
+            buffer.flip();
+            channel.send(buffer, remoteAddress);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    // BUSY and SESSION_EXPIRED carry the head of the request, legacy clients get the refusal as text under it.
+    // Null if the request had no head of theirs.
+    private static PacketMessage legacyRefusal(PacketMessage response) {
+        Object head = response.getBody();
+        if (!LEGACY_HEADS.contains(head)) {
+            return null;
+        }
+        return legacyText((PacketMessage.Head) head, response.getRequestId(),
+                response.getHead() == PacketMessage.Head.BUSY
+                        ? "Server is busy, try again later"
+                        : "Request failed: " + response.getHead());
+    }
+
+    // Legacy clients print the body of INFO and the items of a SHOW list, and report failure for other bodies
+    private static PacketMessage legacyText(PacketMessage.Head head, long requestId, String text) {
+        PacketMessage message = new PacketMessage(false, head,
+                head == PacketMessage.Head.SHOW ? Collections.singletonList(text) : text);
+        message.setRequestId(requestId);
+        return message;
+    }
+
+    private void sendFragmented(PacketMessage response, DatagramChannel channel, SocketAddress remoteAddress,
+                                WireFormat format) throws IOException {
+        ByteBuffer message = null;
+        for (int capacity = bufferPool.getBufferSize() * 4; message == null; capacity *= 4) {
+            if (capacity > Fragments.MAX_MESSAGE_SIZE) {
+                throw new IOException("Response to " + remoteAddress + " is too large");
+            }
+            message = ByteBuffer.allocate(capacity);
+            try {
+                format.encode(response, message);
+            } catch (BufferOverflowException e) {
+                message = null;
+            }
+        }
+        message.flip();
+
+        int messageId = fragmentCache.put(remoteAddress, message);
+        int count = Fragments.fragmentCount(message.limit(), fragmentSize);
+        for (int index = 0; index < count; index++) {
+            sendFragment(channel, messageId, index, message, remoteAddress);
+        }
+    }
+
+    // Send again the fragments that the client reported as missing
+    private void resendFragments(DatagramChannel channel, ByteBuffer nack, SocketAddress remoteAddress)
+            throws IOException {
+        int messageId = Fragments.getNackMessageId(nack);
+        FragmentCache.Entry entry = fragmentCache.get(messageId, remoteAddress);
+        if (entry == null) {
+            return;
+        }
+
+        ByteBuffer message = entry.getMessage();
+        int count = Fragments.fragmentCount(message.limit(), fragmentSize);
+        for (int index : Fragments.getNackIndices(nack)) {
+            if (index >= 0 && index < count) {
+                sendFragment(channel, messageId, index, message, remoteAddress);
+            }
+        }
+    }
+
+    private void sendFragment(DatagramChannel channel, int messageId, int index, ByteBuffer message,
+                              SocketAddress remoteAddress) throws IOException {
+        ByteBuffer buffer = bufferPool.acquire();
+        try {
+            Fragments.putFragment(buffer, messageId, index, message, fragmentSize);
+            buffer.flip();
+            channel.send(buffer, remoteAddress);
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
 
-                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-                try (ObjectOutputStream oo = new ObjectOutputStream(outputStream)) {
-                    oo.writeObject(response);
-                    channel.send(ByteBuffer.wrap(outputStream.toByteArray()), remoteAddress);
-                } catch (IOException e) {
-                    e.printStackTrace();
+    // Resolve the user by session token, or by login and password for clients that do not use sessions
+    private Function<PacketMessage, CompletableFuture<PacketMessage>> authenticated(
+            BiFunction<PacketMessage, Integer, CompletableFuture<PacketMessage>> handler) {
+        return msg -> {
+            if (msg.getSessionToken() == null) {
+                return asyncDatabase.getUserId(msg.getLogin(), msg.getPasswordHash())
+                        .thenCompose(userId -> handler.apply(msg, userId));
+            }
+            int userId = sessions.resolve(msg.getSessionToken());
+            if (userId < 0) {
+                return CompletableFuture.completedFuture(
+                        new PacketMessage(false, PacketMessage.Head.SESSION_EXPIRED, msg.getHead()));
+            }
+            return handler.apply(msg, userId);
+        };
+    }
+
+    // Clients without a session are authenticated by the same statement that changes the collection
+    private Function<PacketMessage, CompletableFuture<PacketMessage>> mutation(
+            BiFunction<PacketMessage, Integer, CompletableFuture<?>> bySession,
+            Function<PacketMessage, CompletableFuture<Boolean>> byCredentials) {
+        return msg -> {
+            if (msg.getSessionToken() == null) {
+                return byCredentials.apply(msg).thenApply(success -> ack(msg, success));
+            }
+            return authenticated((request, userId) -> bySession.apply(request, userId)
+                    .thenApply(result -> ack(request, result != null && !Boolean.FALSE.equals(result))))
+                    .apply(msg);
+        };
+    }
+
+    // Number of elements to remove, one unless the client asked for more
+    private static int removeCount(PacketMessage msg) {
+        return msg.getBody() instanceof Integer ? Math.max(0, (Integer) msg.getBody()) : 1;
+    }
+
+    private Function<PacketMessage, CompletableFuture<PacketMessage>> withElement(
+            Function<PacketMessage, CompletableFuture<PacketMessage>> handler) {
+        return msg -> msg.getBody() instanceof CollectionElement
+                ? handler.apply(msg)
+                : CompletableFuture.completedFuture(ack(msg, false));
+    }
+
+    // Import batches are lists of elements, each of them fits into one request
+    private Function<PacketMessage, CompletableFuture<PacketMessage>> withElements(
+            Function<PacketMessage, CompletableFuture<PacketMessage>> handler) {
+        return msg -> {
+            if (!(msg.getBody() instanceof List) || ((List<?>) msg.getBody()).isEmpty()) {
+                return CompletableFuture.completedFuture(ack(msg, false));
+            }
+            for (Object element : (List<?>) msg.getBody()) {
+                if (!(element instanceof CollectionElement)) {
+                    return CompletableFuture.completedFuture(ack(msg, false));
                 }
-            }).run();
+            }
+            return handler.apply(msg);
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<CollectionElement> elements(PacketMessage msg) {
+        return (List<CollectionElement>) msg.getBody();
+    }
+
+    private CompletableFuture<PacketMessage> loginMessage(PacketMessage msg) {
+        return asyncDatabase.getUserId(msg.getLogin(), msg.getPasswordHash()).thenApply(userId -> {
+            PacketMessage response = new PacketMessage(false, PacketMessage.Head.LOGIN, userId >= 0);
+            if (userId >= 0) {
+                response.setSessionToken(sessions.create(userId));
+                asyncDatabase.warmUp(userId);
+            }
+            return response;
+        });
+    }
+
+    private CompletableFuture<PacketMessage> infoMessage(PacketMessage msg, int userId) {
+        return asyncDatabase.info(userId)
+                .thenApply(info -> new PacketMessage(false, PacketMessage.Head.INFO, info));
+    }
+
+    private CompletableFuture<PacketMessage> showMessage(PacketMessage msg, int userId) {
+        if (msg.getBody() instanceof PageRequest) {
+            PageRequest request = (PageRequest) msg.getBody();
+            int limit = Math.max(1, Math.min(request.getLimit(), maxPageSize));
+            return asyncDatabase.show(userId, request.getAfter(), limit)
+                    .thenApply(page -> new PacketMessage(false, PacketMessage.Head.SHOW, page));
         }
+        // Already ordered by size
+        return asyncDatabase.show(userId)
+                .thenApply(list -> new PacketMessage(false, PacketMessage.Head.SHOW, list));
     }
 
-    private PacketMessage infoMessage(PacketMessage msg) {
-        return new PacketMessage(false, PacketMessage.Head.INFO,
-                database.info(database.getUserId(msg.getLogin(), msg.getPasswordHash())));
+    // Body is the revision the client has, the collection is sent whole for any other body
+    private CompletableFuture<PacketMessage> changesMessage(PacketMessage msg, int userId) {
+        long since = msg.getBody() instanceof Long ? (Long) msg.getBody() : -1;
+        return asyncDatabase.changes(userId, since)
+                .thenApply(delta -> new PacketMessage(false, PacketMessage.Head.CHANGES, delta));
     }
 
-    private PacketMessage showMessage(PacketMessage msg) {
-        List<CollectionElement> list = database.show(database.getUserId(msg.getLogin(), msg.getPasswordHash()));
-        list.sort(CollectionElement::compareTo);
-        return new PacketMessage(false, PacketMessage.Head.SHOW, list);
+    private CompletableFuture<PacketMessage> withinMessage(PacketMessage msg, int userId) {
+        if (!(msg.getBody() instanceof Area)) {
+            return CompletableFuture.completedFuture(ack(msg, false));
+        }
+        return asyncDatabase.within(userId, (Area) msg.getBody())
+                .thenApply(list -> new PacketMessage(false, PacketMessage.Head.WITHIN, list));
+    }
+
+    // At most a page of elements, like SHOW
+    private CompletableFuture<PacketMessage> nearestMessage(PacketMessage msg, int userId) {
+        if (!(msg.getBody() instanceof NearestRequest) || ((NearestRequest) msg.getBody()).getPosition() == null) {
+            return CompletableFuture.completedFuture(ack(msg, false));
+        }
+        NearestRequest request = (NearestRequest) msg.getBody();
+        int count = Math.max(1, Math.min(request.getCount(), maxPageSize));
+        return asyncDatabase.nearest(userId, request.getPosition(), count)
+                .thenApply(list -> new PacketMessage(false, PacketMessage.Head.NEAREST, list));
+    }
+
+    private CompletableFuture<PacketMessage> filterMessage(PacketMessage msg, int userId) {
+        if (!(msg.getBody() instanceof ElementFilter)) {
+            return CompletableFuture.completedFuture(ack(msg, false));
+        }
+        ElementFilter filter = (ElementFilter) msg.getBody();
+        if (!filter.isComplete() || filter.terms() > MAX_FILTER_TERMS) {
+            return CompletableFuture.completedFuture(ack(msg, false));
+        }
+        return asyncDatabase.filter(userId, filter)
+                .thenApply(list -> new PacketMessage(false, PacketMessage.Head.FILTER, list));
     }
 
     private char getRndChar(Random rnd) {
@@ -182,62 +693,24 @@ public class Server implements Runnable, AutoCloseable {
     }
 
     // Generate random password for user
+    // The user and the mail with the password are committed together, the response does not wait for SMTP
     private boolean createPassword(String email) {
-        if (database.consistsUser(email)) return false;
+        try {
+            new InternetAddress(email, true);
+        } catch (AddressException e) {
+            System.out.println("Invalid e-mail " + email);
+            return false;
+        }
         Random rnd = new Random();
         StringBuilder password = new StringBuilder();
         for (int i = 0; i < 10; i++) {
             password.append(getRndChar(rnd));
         }
-        try {
-            sendUserPassword(email, password.toString());
-        } catch (MessagingException e) {
-            e.printStackTrace();
+        if (!mailQueue.addUser(email, Utils.md2(password.toString()),
+                new Mail(email, "Password for Lab7", password.toString()))) {
             return false;
         }
+        mailSender.wakeUp();
         return true;
     }
-
-    private void sendPasswordMail(String passwordToSend, String receiverAddress) throws MessagingException {
-        Properties prop = new Properties();
-        prop.put("mail.smtp.host", "smtp.gmail.com");
-        prop.put("mail.smtp.port", "587");
-        prop.put("mail.smtp.auth", "true");
-        prop.put("mail.smtp.starttls.enable", "true");
-
-        Session session = Session.getInstance(prop,
-                new Authenticator() {
-                    protected PasswordAuthentication getPasswordAuthentication() {
-                        return new PasswordAuthentication(
-                                "itmop3113lab7bot@gmail.com",
-                                "p3113lab7bot");
-                    }
-                });
-
-        Message message = new MimeMessage(session);
-        message.setFrom(new InternetAddress("from@gmail.com"));
-        message.setRecipients(
-                Message.RecipientType.TO,
-                InternetAddress.parse(receiverAddress)
-        );
-
-        message.setSubject("Password for Lab7");
-        message.setText(passwordToSend);
-        try {
-            Transport.send(message);
-        } catch (Exception skip) {
-            System.out.println("Password --> " + passwordToSend);
-        }
-    }
-
-    // Send password to email from gmail
-    private void sendUserPassword(String email, String password) throws MessagingException {
-        sendPasswordMail(password, email);
-        database.addUser(email, Utils.md2(password));
-    }
-
-    // Return true if user successfully authorized
-    private boolean authorize(String email, String password) {
-        return database.checkUser(email, password);
-    }
 }
@@ -0,0 +1,66 @@
+package net;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Tokens issued on login, so that later requests do not have to be checked against lab7_users
+public class SessionManager {
+    private static class Session {
+        private final int userId;
+        private volatile long expiresAt;
+
+        private Session(int userId, long expiresAt) {
+            this.userId = userId;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final AtomicInteger created = new AtomicInteger();
+    private final long timeToLive;
+
+    public SessionManager(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    public String create(int userId) {
+        if (created.incrementAndGet() % 1024 == 0) {
+            removeExpired();
+        }
+
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        sessions.put(token, new Session(userId, System.currentTimeMillis() + timeToLive));
+        return token;
+    }
+
+    // Return the user id of the session, or -1 if the token is unknown or expired.
+    // Every use extends the session.
+    public int resolve(String token) {
+        Session session = sessions.get(token);
+        if (session == null) {
+            return -1;
+        }
+        long now = System.currentTimeMillis();
+        if (session.expiresAt < now) {
+            sessions.remove(token, session);
+            return -1;
+        }
+        session.expiresAt = now + timeToLive;
+        return session.userId;
+    }
+
+    public void revoke(String token) {
+        sessions.remove(token);
+    }
+
+    private void removeExpired() {
+        long now = System.currentTimeMillis();
+        sessions.values().removeIf(session -> session.expiresAt < now);
+    }
+}
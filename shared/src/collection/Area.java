@@ -0,0 +1,47 @@
+package collection;
+
+import java.io.Serializable;
+
+// Rectangle of positions with its borders included, for queries of elements by position
+public class Area implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final double minX;
+    private final double minY;
+    private final double maxX;
+    private final double maxY;
+
+    // Corners may be given in any order
+    public Area(double x1, double y1, double x2, double y2) {
+        this.minX = Math.min(x1, x2);
+        this.minY = Math.min(y1, y2);
+        this.maxX = Math.max(x1, x2);
+        this.maxY = Math.max(y1, y2);
+    }
+
+    public boolean contains(Position position) {
+        return position.getX() >= minX && position.getX() <= maxX
+                && position.getY() >= minY && position.getY() <= maxY;
+    }
+
+    public double getMinX() {
+        return minX;
+    }
+
+    public double getMinY() {
+        return minY;
+    }
+
+    public double getMaxX() {
+        return maxX;
+    }
+
+    public double getMaxY() {
+        return maxY;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("(%f; %f) - (%f; %f)", minX, minY, maxX, maxY);
+    }
+}
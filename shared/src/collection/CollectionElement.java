@@ -7,34 +7,57 @@ import java.util.Date;
 import java.util.Objects;
 
 public class CollectionElement implements Serializable, Cloneable, Comparable<CollectionElement> {
+    private static final long serialVersionUID = 1053587187892967142L;
+
+    // Assigned by the database, zero for elements that were not stored yet
+    private long id;
     private String name;
     private double size;
     private Position position;
-    private LocalDateTime creationDate = LocalDateTime.now();
+    private LocalDateTime creationDate;
 
     public CollectionElement(String name, double size, Position position) {
         this.name = name;
         this.size = size;
         this.position = position.clone();
+        this.creationDate = LocalDateTime.now();
     }
 
     public CollectionElement(String name, double size, double x, double y) {
         this(name, size, new Position(x, y));
     }
 
+    // Element read back from storage, the position is not copied
+    CollectionElement(long id, String name, double size, Position position, LocalDateTime creationDate) {
+        this.id = id;
+        this.name = name;
+        this.size = size;
+        this.position = position;
+        this.creationDate = creationDate;
+    }
+
     public CollectionElement withCreationDate(LocalDateTime creationDate) {
         CollectionElement element = this.clone();
         element.creationDate = creationDate;
         return element;
     }
 
+    public CollectionElement withId(long id) {
+        CollectionElement element = this.clone();
+        element.id = id;
+        return element;
+    }
+
     public CollectionElement() {
         this("", 0, 0, 0);
     }
 
     @Override
     public CollectionElement clone() {
-        return new CollectionElement(name, size, position);
+        CollectionElement element = new CollectionElement(name, size, position);
+        element.id = id;
+        element.creationDate = creationDate;
+        return element;
     }
 
     @Override
@@ -54,6 +77,10 @@ public class CollectionElement implements Serializable, Cloneable, Comparable<Co
         return Objects.hash(CollectionElement.class, name, size, position, creationDate);
     }
 
+    public long getId() {
+        return id;
+    }
+
     public String getName() {
         return name;
     }
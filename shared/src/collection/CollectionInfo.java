@@ -4,17 +4,52 @@ import java.io.Serializable;
 import java.time.LocalDateTime;
 
 public class CollectionInfo implements Serializable {
+    private static final long serialVersionUID = 4519968886744751365L;
+
     private LocalDateTime creationDate;
     private int elementCount;
+    // Time of the last change, null if the collection was never changed
+    private LocalDateTime lastModified;
+    // Sizes of the elements and the bounding box of their positions, zero for an empty collection
+    private double minSize;
+    private double maxSize;
+    private double meanSize;
+    private double minX;
+    private double minY;
+    private double maxX;
+    private double maxY;
 
     public CollectionInfo(LocalDateTime creationDate, int elementCount) {
+        this(creationDate, null, elementCount, 0, 0, 0, 0, 0, 0, 0);
+    }
+
+    public CollectionInfo(LocalDateTime creationDate, LocalDateTime lastModified, int elementCount,
+                          double minSize, double maxSize, double meanSize,
+                          double minX, double minY, double maxX, double maxY) {
         this.creationDate = creationDate;
+        this.lastModified = lastModified;
         this.elementCount = elementCount;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.meanSize = meanSize;
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
     }
 
     @Override
     public String toString() {
-        return String.format("Collection of %d elements created at %s", elementCount, creationDate);
+        StringBuilder builder = new StringBuilder(
+                String.format("Collection of %d elements created at %s", elementCount, creationDate));
+        if (lastModified != null) {
+            builder.append(String.format(", modified at %s", lastModified));
+        }
+        if (elementCount > 0) {
+            builder.append(String.format("%nsizes from %f to %f, %f on average", minSize, maxSize, meanSize));
+            builder.append(String.format("%npositions within (%f; %f) - (%f; %f)", minX, minY, maxX, maxY));
+        }
+        return builder.toString();
     }
 
     public LocalDateTime getCreationDate() {
@@ -24,4 +59,36 @@ public class CollectionInfo implements Serializable {
     public int getElementCount() {
         return elementCount;
     }
+
+    public LocalDateTime getLastModified() {
+        return lastModified;
+    }
+
+    public double getMinSize() {
+        return minSize;
+    }
+
+    public double getMaxSize() {
+        return maxSize;
+    }
+
+    public double getMeanSize() {
+        return meanSize;
+    }
+
+    public double getMinX() {
+        return minX;
+    }
+
+    public double getMinY() {
+        return minY;
+    }
+
+    public double getMaxX() {
+        return maxX;
+    }
+
+    public double getMaxY() {
+        return maxY;
+    }
 }
@@ -0,0 +1,103 @@
+package collection;
+
+import java.time.LocalDateTime;
+import java.util.NavigableSet;
+import java.util.function.Consumer;
+
+// Statistics of a collection kept in memory, updated on every change of it.
+// Smallest and largest sizes are the ends of the collection ordered by size. The bounding box of positions
+// only grows with added elements and is scanned again once after a change removed an element from its border.
+public class CollectionStats {
+    private double sizeSum = 0;
+    private double minX;
+    private double minY;
+    private double maxX;
+    private double maxY;
+    private boolean empty = true;
+    private boolean boxStale = false;
+    private LocalDateTime lastModified;
+
+    public void added(CollectionElement element) {
+        added(element.getSize(), element.getPosition().getX(), element.getPosition().getY());
+    }
+
+    public void added(double size, double x, double y) {
+        sizeSum += size;
+        if (empty) {
+            minX = maxX = x;
+            minY = maxY = y;
+            empty = false;
+        } else {
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+        }
+    }
+
+    public void removed(CollectionElement element) {
+        removed(element.getSize(), element.getPosition().getX(), element.getPosition().getY());
+    }
+
+    public void removed(double size, double x, double y) {
+        sizeSum -= size;
+        if (x == minX || x == maxX || y == minY || y == maxY) {
+            boxStale = true;
+        }
+    }
+
+    // Called after the elements of a change were added and removed
+    public void changed(NavigableSet<CollectionElement> elements, LocalDateTime when) {
+        settle(elements.isEmpty(), stats -> elements.forEach(stats::added));
+        if (when != null) {
+            lastModified = when;
+        }
+    }
+
+    // Bring the box up to date once it went stale. The scan adds every element of the collection again,
+    // it is not called for empty collections.
+    public void settle(boolean isEmpty, Consumer<CollectionStats> scan) {
+        if (isEmpty) {
+            clear();
+        } else if (boxStale) {
+            // The scan sums the sizes again as well
+            clear();
+            scan.accept(this);
+        }
+    }
+
+    // Compute everything again from the elements, for collections loaded in bulk
+    public void reset(NavigableSet<CollectionElement> elements, LocalDateTime lastModified) {
+        clear();
+        elements.forEach(this::added);
+        this.lastModified = lastModified;
+    }
+
+    // The sum of removed sizes may not come back to zero exactly
+    public void clear() {
+        sizeSum = 0;
+        empty = true;
+        boxStale = false;
+    }
+
+    public LocalDateTime getLastModified() {
+        return lastModified;
+    }
+
+    public CollectionInfo info(LocalDateTime creationDate, NavigableSet<CollectionElement> elements) {
+        return elements.isEmpty()
+                ? info(creationDate, lastModified, 0, 0, 0)
+                : info(creationDate, lastModified, elements.size(),
+                        elements.first().getSize(), elements.last().getSize());
+    }
+
+    // Sizes are those of the ends of the collection, the box must be settled
+    public CollectionInfo info(LocalDateTime creationDate, LocalDateTime lastModified,
+                               int count, double minSize, double maxSize) {
+        if (count == 0) {
+            return new CollectionInfo(creationDate, lastModified, 0, 0, 0, 0, 0, 0, 0, 0);
+        }
+        return new CollectionInfo(creationDate, lastModified, count,
+                minSize, maxSize, sizeSum / count, minX, minY, maxX, maxY);
+    }
+}
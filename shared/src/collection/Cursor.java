@@ -0,0 +1,33 @@
+package collection;
+
+import java.io.Serializable;
+
+// Position in a collection ordered by size and id, the next page starts after it
+public class Cursor implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final double size;
+    private final long id;
+
+    public Cursor(double size, long id) {
+        this.size = size;
+        this.id = id;
+    }
+
+    public static Cursor after(CollectionElement element) {
+        return new Cursor(element.getSize(), element.getId());
+    }
+
+    public double getSize() {
+        return size;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("(%f; #%d)", size, id);
+    }
+}
@@ -0,0 +1,47 @@
+package collection;
+
+import java.io.Serializable;
+import java.util.List;
+
+// Changes of a collection since a revision, or the whole collection if the changes are no longer kept
+public class Delta implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long revision;
+    private final boolean snapshot;
+    // Elements carry their ids
+    private final List<CollectionElement> added;
+    private final long[] removed;
+
+    public Delta(long revision, boolean snapshot, List<CollectionElement> added, long[] removed) {
+        this.revision = revision;
+        this.snapshot = snapshot;
+        this.added = added;
+        this.removed = removed;
+    }
+
+    // Revision of the collection the changes lead to
+    public long getRevision() {
+        return revision;
+    }
+
+    // True if added is the whole collection and everything known before has to be dropped
+    public boolean isSnapshot() {
+        return snapshot;
+    }
+
+    public List<CollectionElement> getAdded() {
+        return added;
+    }
+
+    public long[] getRemoved() {
+        return removed;
+    }
+
+    @Override
+    public String toString() {
+        return snapshot
+                ? String.format("Revision %d: %d elements", revision, added.size())
+                : String.format("Revision %d: %d added, %d removed", revision, added.size(), removed.length);
+    }
+}
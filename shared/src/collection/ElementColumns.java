@@ -0,0 +1,477 @@
+package collection;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Elements ordered by size and id, stored column by column in primitive arrays instead of as objects.
+// Rows are kept in blocks of at most BLOCK_SIZE, so an insertion or removal moves the rows of one block only.
+// Names are codes into a dictionary of the distinct names. Elements are created only when they are read.
+// Not thread-safe.
+public class ElementColumns {
+    private static final int BLOCK_SIZE = 1024;
+    private static final int NULL_NAME = -1;
+    // Nanoseconds of rows without a creation date
+    private static final int NO_DATE = -1;
+
+    private static class Block {
+        private int length = 0;
+        private double[] sizes;
+        private long[] ids;
+        private double[] xs;
+        private double[] ys;
+        // Creation dates as UTC epoch seconds and nanoseconds
+        private long[] seconds;
+        private int[] nanos;
+        private int[] names;
+
+        private Block(int capacity) {
+            sizes = new double[capacity];
+            ids = new long[capacity];
+            xs = new double[capacity];
+            ys = new double[capacity];
+            seconds = new long[capacity];
+            nanos = new int[capacity];
+            names = new int[capacity];
+        }
+
+        // Small collections do not pay for whole blocks
+        private void ensureCapacity(int capacity) {
+            if (capacity <= sizes.length) {
+                return;
+            }
+            capacity = Math.min(BLOCK_SIZE, Math.max(capacity, sizes.length * 2));
+            sizes = Arrays.copyOf(sizes, capacity);
+            ids = Arrays.copyOf(ids, capacity);
+            xs = Arrays.copyOf(xs, capacity);
+            ys = Arrays.copyOf(ys, capacity);
+            seconds = Arrays.copyOf(seconds, capacity);
+            nanos = Arrays.copyOf(nanos, capacity);
+            names = Arrays.copyOf(names, capacity);
+        }
+
+        // Row of the key, or -(insertion row) - 1 if it is not in the block
+        private int find(double size, long id) {
+            int low = 0;
+            int high = length - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int order = compare(sizes[middle], ids[middle], size, id);
+                if (order < 0) {
+                    low = middle + 1;
+                } else if (order > 0) {
+                    high = middle - 1;
+                } else {
+                    return middle;
+                }
+            }
+            return -(low + 1);
+        }
+    }
+
+    // Sizes of the rows by id, with open addressing so that ids are not boxed
+    private static class SizesById {
+        private static final long FREE = Long.MIN_VALUE;
+        private static final int INITIAL_CAPACITY = 16;
+
+        private long[] keys;
+        private double[] values;
+        private int count;
+
+        private SizesById() {
+            clear();
+        }
+
+        private boolean contains(long id) {
+            return id != FREE && keys[slot(id)] == id;
+        }
+
+        // Only for contained ids
+        private double get(long id) {
+            return values[slot(id)];
+        }
+
+        private void put(long id, double size) {
+            if ((count + 1) * 2 > keys.length) {
+                resize(keys.length * 2);
+            }
+            int slot = slot(id);
+            if (keys[slot] == FREE) {
+                count++;
+            }
+            keys[slot] = id;
+            values[slot] = size;
+        }
+
+        // Entries after the removed one move back, so probing never stops at a hole
+        private void remove(long id) {
+            int hole = slot(id);
+            if (keys[hole] != id) {
+                return;
+            }
+            count--;
+            int mask = keys.length - 1;
+            for (int next = (hole + 1) & mask; keys[next] != FREE; next = (next + 1) & mask) {
+                int home = home(keys[next]);
+                boolean stays = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+                if (!stays) {
+                    keys[hole] = keys[next];
+                    values[hole] = values[next];
+                    hole = next;
+                }
+            }
+            keys[hole] = FREE;
+        }
+
+        private void clear() {
+            keys = new long[INITIAL_CAPACITY];
+            Arrays.fill(keys, FREE);
+            values = new double[INITIAL_CAPACITY];
+            count = 0;
+        }
+
+        // Slot of the id, or the free slot it would take
+        private int slot(long id) {
+            int mask = keys.length - 1;
+            int slot = home(id);
+            while (keys[slot] != FREE && keys[slot] != id) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private int home(long id) {
+            long hash = id * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> 32)) & (keys.length - 1);
+        }
+
+        private void resize(int capacity) {
+            long[] oldKeys = keys;
+            double[] oldValues = values;
+            keys = new long[capacity];
+            Arrays.fill(keys, FREE);
+            values = new double[capacity];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != FREE) {
+                    int slot = slot(oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+    }
+
+    private final List<Block> blocks = new ArrayList<>();
+    private int size = 0;
+    private final SizesById sizesById = new SizesById();
+    // Kept up to date with the rows, so that info does not scan them
+    private final CollectionStats stats = new CollectionStats();
+
+    // Codes of names are reused once no row refers to them
+    private final Map<String, Integer> codes = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+    private int[] references = new int[16];
+    private final ArrayDeque<Integer> freeCodes = new ArrayDeque<>();
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // Return false if an element with the id is stored already
+    public boolean add(CollectionElement element) {
+        if (sizesById.contains(element.getId())) {
+            return false;
+        }
+        double elementSize = element.getSize();
+        long id = element.getId();
+        if (blocks.isEmpty()) {
+            blocks.add(new Block(4));
+        }
+        int index = blockOf(elementSize, id);
+        Block block = blocks.get(index);
+        int row = -block.find(elementSize, id) - 1;
+        if (row == BLOCK_SIZE) {
+            // Only the last block ends before the key, elements loaded in order fill whole blocks
+            block = new Block(4);
+            blocks.add(block);
+            row = 0;
+        } else if (block.length == BLOCK_SIZE) {
+            int half = BLOCK_SIZE / 2;
+            Block upper = new Block(BLOCK_SIZE - half);
+            moveRows(block, half, upper, 0, BLOCK_SIZE - half);
+            upper.length = BLOCK_SIZE - half;
+            block.length = half;
+            blocks.add(index + 1, upper);
+            if (row > half) {
+                block = upper;
+                row -= half;
+            }
+        }
+        block.ensureCapacity(block.length + 1);
+        moveRows(block, row, block, row + 1, block.length - row);
+        block.length++;
+
+        block.sizes[row] = elementSize;
+        block.ids[row] = id;
+        block.xs[row] = element.getPosition().getX();
+        block.ys[row] = element.getPosition().getY();
+        LocalDateTime creationDate = element.getCreationDate();
+        block.seconds[row] = creationDate == null ? 0 : creationDate.toEpochSecond(ZoneOffset.UTC);
+        block.nanos[row] = creationDate == null ? NO_DATE : creationDate.getNano();
+        block.names[row] = encode(element.getName());
+        sizesById.put(id, elementSize);
+        stats.added(elementSize, block.xs[row], block.ys[row]);
+        size++;
+        return true;
+    }
+
+    // Return the element with the id, or null if there is none
+    public CollectionElement get(long id) {
+        if (!sizesById.contains(id)) {
+            return null;
+        }
+        double elementSize = sizesById.get(id);
+        Block block = blocks.get(blockOf(elementSize, id));
+        return element(block, block.find(elementSize, id));
+    }
+
+    // Return the removed element, or null if there was none with the id
+    public CollectionElement remove(long id) {
+        if (!sizesById.contains(id)) {
+            return null;
+        }
+        double elementSize = sizesById.get(id);
+        int index = blockOf(elementSize, id);
+        Block block = blocks.get(index);
+        int row = block.find(elementSize, id);
+        CollectionElement element = element(block, row);
+        removeRow(index, row);
+        return element;
+    }
+
+    // Remove elements with the name, size and position of the element, whatever their ids and creation dates
+    public List<CollectionElement> removeEqual(CollectionElement element) {
+        List<CollectionElement> removed = new ArrayList<>();
+        Integer code = element.getName() == null ? Integer.valueOf(NULL_NAME) : codes.get(element.getName());
+        if (code == null || blocks.isEmpty()) {
+            return removed;
+        }
+        double elementSize = element.getSize();
+        double x = element.getPosition().getX();
+        double y = element.getPosition().getY();
+        int index = blockOf(elementSize, Long.MIN_VALUE);
+        int row = -blocks.get(index).find(elementSize, Long.MIN_VALUE) - 1;
+        while (index < blocks.size()) {
+            Block block = blocks.get(index);
+            if (row == block.length) {
+                index++;
+                row = 0;
+                continue;
+            }
+            if (Double.compare(block.sizes[row], elementSize) != 0) {
+                break;
+            }
+            if (block.names[row] == code && block.xs[row] == x && block.ys[row] == y) {
+                removed.add(element(block, row));
+                // The next row takes its place, unless the block went away
+                if (removeRow(index, row)) {
+                    row = 0;
+                }
+            } else {
+                row++;
+            }
+        }
+        return removed;
+    }
+
+    public void clear() {
+        blocks.clear();
+        size = 0;
+        sizesById.clear();
+        stats.clear();
+        codes.clear();
+        names.clear();
+        references = new int[16];
+        freeCodes.clear();
+    }
+
+    // All elements ordered by size and id
+    public List<CollectionElement> toList() {
+        List<CollectionElement> elements = new ArrayList<>(size);
+        for (Block block : blocks) {
+            for (int row = 0; row < block.length; row++) {
+                elements.add(element(block, row));
+            }
+        }
+        return elements;
+    }
+
+    // Up to limit elements following the cursor, from the start if it is null
+    public Page page(Cursor after, int limit) {
+        List<CollectionElement> elements = new ArrayList<>(Math.min(limit, size));
+        if (blocks.isEmpty()) {
+            return new Page(elements, null);
+        }
+        int index = 0;
+        int row = 0;
+        if (after != null) {
+            index = blockOf(after.getSize(), after.getId());
+            row = blocks.get(index).find(after.getSize(), after.getId());
+            row = row >= 0 ? row + 1 : -row - 1;
+        }
+        boolean hasNext = false;
+        for (; index < blocks.size() && !hasNext; index++, row = 0) {
+            Block block = blocks.get(index);
+            for (; row < block.length; row++) {
+                if (elements.size() == limit) {
+                    hasNext = true;
+                    break;
+                }
+                elements.add(element(block, row));
+            }
+        }
+        return new Page(elements, hasNext ? Cursor.after(elements.get(limit - 1)) : null);
+    }
+
+    // Elements matching the filter ordered by size and id, only matching rows become elements
+    public List<CollectionElement> select(ElementFilter filter) {
+        List<CollectionElement> elements = new ArrayList<>();
+        for (Block block : blocks) {
+            for (int row = 0; row < block.length; row++) {
+                int name = block.names[row];
+                if (filter.matches(name == NULL_NAME ? null : names.get(name), block.sizes[row],
+                        block.xs[row], block.ys[row], block.seconds[row], block.nanos[row])) {
+                    elements.add(element(block, row));
+                }
+            }
+        }
+        return elements;
+    }
+
+    // Statistics are kept with the rows, the columns are scanned only if an element was removed
+    // from the border of the bounding box since the last call
+    public CollectionInfo info(LocalDateTime creationDate, LocalDateTime lastModified) {
+        stats.settle(size == 0, this::scan);
+        if (size == 0) {
+            return stats.info(creationDate, lastModified, 0, 0, 0);
+        }
+        Block last = blocks.get(blocks.size() - 1);
+        return stats.info(creationDate, lastModified, size, blocks.get(0).sizes[0], last.sizes[last.length - 1]);
+    }
+
+    private void scan(CollectionStats stats) {
+        for (Block block : blocks) {
+            for (int row = 0; row < block.length; row++) {
+                stats.added(block.sizes[row], block.xs[row], block.ys[row]);
+            }
+        }
+    }
+
+    // First block whose last row is not before the key, or the last block
+    private int blockOf(double size, long id) {
+        int low = 0;
+        int high = blocks.size() - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            Block block = blocks.get(middle);
+            int last = block.length - 1;
+            if (compare(block.sizes[last], block.ids[last], size, id) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // Return true if the block became empty and was dropped
+    private boolean removeRow(int index, int row) {
+        Block block = blocks.get(index);
+        sizesById.remove(block.ids[row]);
+        stats.removed(block.sizes[row], block.xs[row], block.ys[row]);
+        release(block.names[row]);
+        moveRows(block, row + 1, block, row, block.length - row - 1);
+        block.length--;
+        size--;
+        if (block.length == 0) {
+            blocks.remove(index);
+            return true;
+        }
+        // Blocks that removals emptied are merged, so scans do not walk through many small ones
+        if (index + 1 < blocks.size()) {
+            Block next = blocks.get(index + 1);
+            if (block.length + next.length <= BLOCK_SIZE / 2) {
+                block.ensureCapacity(block.length + next.length);
+                moveRows(next, 0, block, block.length, next.length);
+                block.length += next.length;
+                blocks.remove(index + 1);
+            }
+        }
+        return false;
+    }
+
+    private CollectionElement element(Block block, int row) {
+        int nano = block.nanos[row];
+        LocalDateTime creationDate = nano == NO_DATE
+                ? null
+                : LocalDateTime.ofEpochSecond(block.seconds[row], nano, ZoneOffset.UTC);
+        int name = block.names[row];
+        return new CollectionElement(block.ids[row], name == NULL_NAME ? null : names.get(name),
+                block.sizes[row], new Position(block.xs[row], block.ys[row]), creationDate);
+    }
+
+    private int encode(String name) {
+        if (name == null) {
+            return NULL_NAME;
+        }
+        Integer code = codes.get(name);
+        if (code == null) {
+            if (freeCodes.isEmpty()) {
+                code = names.size();
+                names.add(name);
+                if (code == references.length) {
+                    references = Arrays.copyOf(references, code * 2);
+                }
+            } else {
+                code = freeCodes.pop();
+                names.set(code, name);
+            }
+            codes.put(name, code);
+        }
+        references[code]++;
+        return code;
+    }
+
+    private void release(int code) {
+        if (code != NULL_NAME && --references[code] == 0) {
+            codes.remove(names.get(code));
+            names.set(code, null);
+            freeCodes.push(code);
+        }
+    }
+
+    private static void moveRows(Block from, int fromRow, Block to, int toRow, int count) {
+        System.arraycopy(from.sizes, fromRow, to.sizes, toRow, count);
+        System.arraycopy(from.ids, fromRow, to.ids, toRow, count);
+        System.arraycopy(from.xs, fromRow, to.xs, toRow, count);
+        System.arraycopy(from.ys, fromRow, to.ys, toRow, count);
+        System.arraycopy(from.seconds, fromRow, to.seconds, toRow, count);
+        System.arraycopy(from.nanos, fromRow, to.nanos, toRow, count);
+        System.arraycopy(from.names, fromRow, to.names, toRow, count);
+    }
+
+    // Same order as the collections: by size, then by id
+    private static int compare(double size, long id, double otherSize, long otherId) {
+        int order = Double.compare(size, otherSize);
+        return order != 0 ? order : Long.compare(id, otherId);
+    }
+}
@@ -0,0 +1,218 @@
+package collection;
+
+import java.io.Serializable;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+// Condition on elements sent with FILTER, so that only matching elements come back.
+// Conditions on the name, size, position and creation date are combined with AND and OR.
+// Ranges include their bounds, an open end of a creation date range is null.
+public class ElementFilter implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public enum Kind {
+        NAME,
+        NAME_PREFIX,
+        SIZE,
+        POSITION,
+        CREATED,
+        AND,
+        OR,
+    }
+
+    private final Kind kind;
+    private final String name;
+    private final double minSize;
+    private final double maxSize;
+    private final Area area;
+    private final LocalDateTime createdFrom;
+    private final LocalDateTime createdTo;
+    private final List<ElementFilter> operands;
+
+    private ElementFilter(Kind kind, String name, double minSize, double maxSize, Area area,
+                          LocalDateTime createdFrom, LocalDateTime createdTo, List<ElementFilter> operands) {
+        this.kind = kind;
+        this.name = name;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.area = area;
+        this.createdFrom = createdFrom;
+        this.createdTo = createdTo;
+        this.operands = operands;
+    }
+
+    // Elements without a name match a null name only
+    public static ElementFilter nameEquals(String name) {
+        return new ElementFilter(Kind.NAME, name, 0, 0, null, null, null, null);
+    }
+
+    public static ElementFilter nameStartsWith(String prefix) {
+        return new ElementFilter(Kind.NAME_PREFIX, prefix == null ? "" : prefix, 0, 0, null, null, null, null);
+    }
+
+    public static ElementFilter sizeBetween(double min, double max) {
+        return new ElementFilter(Kind.SIZE, null, min, max, null, null, null, null);
+    }
+
+    public static ElementFilter within(Area area) {
+        return new ElementFilter(Kind.POSITION, null, 0, 0, area, null, null, null);
+    }
+
+    public static ElementFilter createdBetween(LocalDateTime from, LocalDateTime to) {
+        return new ElementFilter(Kind.CREATED, null, 0, 0, null, from, to, null);
+    }
+
+    // Matches every element if there are no operands
+    public static ElementFilter and(List<ElementFilter> operands) {
+        return new ElementFilter(Kind.AND, null, 0, 0, null, null, null,
+                Collections.unmodifiableList(new ArrayList<>(operands)));
+    }
+
+    // Matches no element if there are no operands
+    public static ElementFilter or(List<ElementFilter> operands) {
+        return new ElementFilter(Kind.OR, null, 0, 0, null, null, null,
+                Collections.unmodifiableList(new ArrayList<>(operands)));
+    }
+
+    public boolean test(CollectionElement element) {
+        LocalDateTime creationDate = element.getCreationDate();
+        return matches(element.getName(), element.getSize(),
+                element.getPosition().getX(), element.getPosition().getY(),
+                creationDate == null ? 0 : creationDate.toEpochSecond(ZoneOffset.UTC),
+                creationDate == null ? -1 : creationDate.getNano());
+    }
+
+    // False if a part is missing, which only a forged packet can do
+    public boolean isComplete() {
+        if (kind == null) {
+            return false;
+        }
+        switch (kind) {
+            case NAME_PREFIX:
+                return name != null;
+            case POSITION:
+                return area != null;
+            case AND:
+            case OR:
+                if (operands == null) {
+                    return false;
+                }
+                for (ElementFilter operand : operands) {
+                    if (operand == null || !operand.isComplete()) {
+                        return false;
+                    }
+                }
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    // Conditions with their operands, to keep filters from clients small
+    public int terms() {
+        int terms = 1;
+        if (operands != null) {
+            for (ElementFilter operand : operands) {
+                terms += operand.terms();
+            }
+        }
+        return terms;
+    }
+
+    // Columns of a row of ElementColumns, nanoseconds are negative for elements without a creation date
+    boolean matches(String elementName, double size, double x, double y, long seconds, int nanos) {
+        switch (kind) {
+            case NAME:
+                return Objects.equals(elementName, name);
+            case NAME_PREFIX:
+                return elementName != null && elementName.startsWith(name);
+            case SIZE:
+                return size >= minSize && size <= maxSize;
+            case POSITION:
+                return x >= area.getMinX() && x <= area.getMaxX() && y >= area.getMinY() && y <= area.getMaxY();
+            case CREATED:
+                return nanos >= 0
+                        && (createdFrom == null || compare(seconds, nanos, createdFrom) >= 0)
+                        && (createdTo == null || compare(seconds, nanos, createdTo) <= 0);
+            case AND:
+                for (ElementFilter operand : operands) {
+                    if (!operand.matches(elementName, size, x, y, seconds, nanos)) {
+                        return false;
+                    }
+                }
+                return true;
+            case OR:
+                for (ElementFilter operand : operands) {
+                    if (operand.matches(elementName, size, x, y, seconds, nanos)) {
+                        return true;
+                    }
+                }
+                return false;
+            default:
+                throw new IllegalStateException("Unknown filter " + kind);
+        }
+    }
+
+    private static int compare(long seconds, int nanos, LocalDateTime bound) {
+        int order = Long.compare(seconds, bound.toEpochSecond(ZoneOffset.UTC));
+        return order != 0 ? order : Integer.compare(nanos, bound.getNano());
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    // Name of NAME, prefix of NAME_PREFIX
+    public String getName() {
+        return name;
+    }
+
+    public double getMinSize() {
+        return minSize;
+    }
+
+    public double getMaxSize() {
+        return maxSize;
+    }
+
+    public Area getArea() {
+        return area;
+    }
+
+    public LocalDateTime getCreatedFrom() {
+        return createdFrom;
+    }
+
+    public LocalDateTime getCreatedTo() {
+        return createdTo;
+    }
+
+    public List<ElementFilter> getOperands() {
+        return operands;
+    }
+
+    @Override
+    public String toString() {
+        switch (kind) {
+            case NAME:
+                return "name = " + name;
+            case NAME_PREFIX:
+                return "name starts with " + name;
+            case SIZE:
+                return String.format("size in [%f; %f]", minSize, maxSize);
+            case POSITION:
+                return "position in " + area;
+            case CREATED:
+                return "created in [" + (createdFrom == null ? "..." : createdFrom) + "; "
+                        + (createdTo == null ? "..." : createdTo) + "]";
+            default:
+                List<String> parts = new ArrayList<>();
+                operands.forEach(operand -> parts.add(operand.toString()));
+                return "(" + String.join(kind == Kind.AND ? " and " : " or ", parts) + ")";
+        }
+    }
+}
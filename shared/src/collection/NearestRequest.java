@@ -0,0 +1,24 @@
+package collection;
+
+import java.io.Serializable;
+
+// Asks for up to count elements closest to the position
+public class NearestRequest implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final Position position;
+    private final int count;
+
+    public NearestRequest(Position position, int count) {
+        this.position = position;
+        this.count = count;
+    }
+
+    public Position getPosition() {
+        return position;
+    }
+
+    public int getCount() {
+        return count;
+    }
+}
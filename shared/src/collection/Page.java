@@ -0,0 +1,26 @@
+package collection;
+
+import java.io.Serializable;
+import java.util.List;
+
+// Elements ordered by size and id
+public class Page implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final List<CollectionElement> elements;
+    // Null on the last page
+    private final Cursor next;
+
+    public Page(List<CollectionElement> elements, Cursor next) {
+        this.elements = elements;
+        this.next = next;
+    }
+
+    public List<CollectionElement> getElements() {
+        return elements;
+    }
+
+    public Cursor getNext() {
+        return next;
+    }
+}
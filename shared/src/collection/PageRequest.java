@@ -0,0 +1,24 @@
+package collection;
+
+import java.io.Serializable;
+
+public class PageRequest implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // Null for the first page
+    private final Cursor after;
+    private final int limit;
+
+    public PageRequest(Cursor after, int limit) {
+        this.after = after;
+        this.limit = limit;
+    }
+
+    public Cursor getAfter() {
+        return after;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+}
@@ -4,6 +4,8 @@ import java.io.Serializable;
 import java.util.Objects;
 
 public class Position implements Cloneable, Serializable {
+    private static final long serialVersionUID = 5907845386734870004L;
+
     private double x, y;
 
     public Position(double x, double y) {
@@ -0,0 +1,27 @@
+package net;
+
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+// Throws BufferOverflowException when the buffer is full, so callers can retry with a larger one
+public class ByteBufferOutputStream extends OutputStream {
+    private final ByteBuffer buffer;
+
+    public ByteBufferOutputStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public void write(int b) {
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+        if (buffer.remaining() < length) {
+            throw new BufferOverflowException();
+        }
+        buffer.put(bytes, offset, length);
+    }
+}
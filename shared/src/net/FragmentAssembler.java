@@ -0,0 +1,93 @@
+package net;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+public class FragmentAssembler {
+    private static class PartialMessage {
+        private final ByteBuffer data;
+        private final int count;
+        private final BitSet received;
+        private long lastUpdate = System.currentTimeMillis();
+
+        private PartialMessage(int total, int count) {
+            this.data = ByteBuffer.allocate(total);
+            this.count = count;
+            this.received = new BitSet(count);
+        }
+    }
+
+    private final Map<Integer, PartialMessage> messages = new HashMap<>();
+
+    // Return the whole message once its last missing fragment arrives, null otherwise
+    public ByteBuffer accept(ByteBuffer fragment) throws MalformedPacketException {
+        fragment.getShort();
+        int messageId = fragment.getInt();
+        int index = fragment.getInt();
+        int count = fragment.getInt();
+        int total = fragment.getInt();
+        int offset = fragment.getInt();
+
+        if (count <= 0 || index < 0 || index >= count || total < 0 || total > Fragments.MAX_MESSAGE_SIZE
+                || offset < 0 || offset > total - fragment.remaining()) {
+            throw new MalformedPacketException("Corrupted fragment header");
+        }
+
+        PartialMessage message = messages.get(messageId);
+        if (message == null) {
+            message = new PartialMessage(total, count);
+            messages.put(messageId, message);
+        } else if (message.count != count || message.data.capacity() != total) {
+            throw new MalformedPacketException("Fragment does not belong to message " + messageId);
+        }
+
+        if (!message.received.get(index)) {
+            ByteBuffer target = message.data.duplicate();
+            target.position(offset);
+            target.put(fragment);
+            message.received.set(index);
+            message.lastUpdate = System.currentTimeMillis();
+        }
+
+        if (message.received.cardinality() < message.count) {
+            return null;
+        }
+        messages.remove(messageId);
+        message.data.clear();
+        return message.data;
+    }
+
+    public boolean isEmpty() {
+        return messages.isEmpty();
+    }
+
+    // Return missing fragment indices of messages that got no fragments for the given time
+    public Map<Integer, int[]> getMissing(long idleMillis) {
+        long now = System.currentTimeMillis();
+        Map<Integer, int[]> missing = new HashMap<>();
+        messages.forEach((id, message) -> {
+            if (now - message.lastUpdate < idleMillis) {
+                return;
+            }
+            int[] indices = new int[message.count - message.received.cardinality()];
+            int i = 0;
+            for (int index = message.received.nextClearBit(0); index < message.count;
+                 index = message.received.nextClearBit(index + 1)) {
+                indices[i++] = index;
+            }
+            missing.put(id, indices);
+        });
+        return missing;
+    }
+
+    public void removeIdle(long idleMillis) {
+        long now = System.currentTimeMillis();
+        messages.values().removeIf(message -> now - message.lastUpdate >= idleMillis);
+    }
+
+    public void clear() {
+        messages.clear();
+    }
+}
@@ -0,0 +1,68 @@
+package net;
+
+import java.nio.ByteBuffer;
+
+// Transport frames for messages that do not fit into one datagram.
+// Fragment: magic (2 bytes), message id, index, count, total length, offset (4 bytes each), payload.
+// Nack: magic (2 bytes), message id, number of missing fragments, their indices (4 bytes each).
+public class Fragments {
+    public static final short FRAGMENT_MAGIC = 0x4C46;
+    public static final short NACK_MAGIC = 0x4C4E;
+    public static final int HEADER_SIZE = 22;
+    public static final int MAX_MESSAGE_SIZE = 64 << 20;
+
+    public static boolean isFragment(ByteBuffer buffer) {
+        return buffer.remaining() >= HEADER_SIZE && buffer.getShort(buffer.position()) == FRAGMENT_MAGIC;
+    }
+
+    public static boolean isNack(ByteBuffer buffer) {
+        return buffer.remaining() >= 10 && buffer.getShort(buffer.position()) == NACK_MAGIC;
+    }
+
+    public static int fragmentCount(int messageLength, int fragmentSize) {
+        return (messageLength + fragmentSize - 1) / fragmentSize;
+    }
+
+    // Write fragment number index of the message between position 0 and limit
+    public static void putFragment(ByteBuffer target, int messageId, int index, ByteBuffer message, int fragmentSize) {
+        int total = message.limit();
+        int offset = index * fragmentSize;
+        int length = Math.min(fragmentSize, total - offset);
+
+        target.putShort(FRAGMENT_MAGIC);
+        target.putInt(messageId);
+        target.putInt(index);
+        target.putInt(fragmentCount(total, fragmentSize));
+        target.putInt(total);
+        target.putInt(offset);
+
+        ByteBuffer payload = message.duplicate();
+        payload.limit(offset + length).position(offset);
+        target.put(payload);
+    }
+
+    public static void putNack(ByteBuffer target, int messageId, int[] missing) {
+        target.putShort(NACK_MAGIC);
+        target.putInt(messageId);
+        target.putInt(missing.length);
+        for (int index : missing) {
+            target.putInt(index);
+        }
+    }
+
+    public static int getNackMessageId(ByteBuffer buffer) {
+        return buffer.getInt(buffer.position() + 2);
+    }
+
+    public static int[] getNackIndices(ByteBuffer buffer) throws MalformedPacketException {
+        int count = buffer.getInt(buffer.position() + 6);
+        if (count < 0 || count > (buffer.remaining() - 10) / 4) {
+            throw new MalformedPacketException("Corrupted nack");
+        }
+        int[] indices = new int[count];
+        for (int i = 0; i < count; i++) {
+            indices[i] = buffer.getInt(buffer.position() + 10 + 4 * i);
+        }
+        return indices;
+    }
+}
@@ -0,0 +1,13 @@
+package net;
+
+import java.io.IOException;
+
+public class MalformedPacketException extends IOException {
+    public MalformedPacketException(String message) {
+        super(message);
+    }
+
+    public MalformedPacketException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -2,17 +2,26 @@ package net;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
 public class MessageProcessor {
     private Map<PacketMessage.Head, Function<PacketMessage, PacketMessage>> requestMap = new HashMap<>();
     private Map<PacketMessage.Head, Consumer<PacketMessage>> responseMap = new HashMap<>();
+    private Map<PacketMessage.Head, Function<PacketMessage, CompletableFuture<PacketMessage>>> asyncRequestMap =
+            new HashMap<>();
 
     public void setRequestProcessor(PacketMessage.Head type, Function<PacketMessage, PacketMessage> processor) {
         requestMap.put(type, processor);
     }
 
+    // The processor starts the work and returns at once, the response arrives with the future
+    public void setAsyncRequestProcessor(PacketMessage.Head type,
+                                         Function<PacketMessage, CompletableFuture<PacketMessage>> processor) {
+        asyncRequestMap.put(type, processor);
+    }
+
     public void setResponseProcessor(PacketMessage.Head type, Consumer<PacketMessage> processor) {
         responseMap.put(type, processor);
     }
@@ -21,6 +30,10 @@ public class MessageProcessor {
         return requestMap.containsKey(type);
     }
 
+    public boolean hasAsyncRequestProcessor(PacketMessage.Head type) {
+        return asyncRequestMap.containsKey(type);
+    }
+
     public boolean hasResponseProcessor(PacketMessage.Head type) {
         return responseMap.containsKey(type);
     }
@@ -38,4 +51,18 @@ public class MessageProcessor {
 
         return null;
     }
+
+    // Requests without an async processor are processed synchronously by the calling thread
+    public CompletableFuture<PacketMessage> processAsync(PacketMessage packetMessage) {
+        if (packetMessage.isRequest() && asyncRequestMap.containsKey(packetMessage.getHead())) {
+            try {
+                return asyncRequestMap.get(packetMessage.getHead()).apply(packetMessage);
+            } catch (RuntimeException e) {
+                CompletableFuture<PacketMessage> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                return failed;
+            }
+        }
+        return CompletableFuture.completedFuture(process(packetMessage));
+    }
 }
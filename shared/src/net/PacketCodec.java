@@ -0,0 +1,457 @@
+package net;
+
+import collection.Area;
+import collection.CollectionElement;
+import collection.CollectionInfo;
+import collection.Cursor;
+import collection.Delta;
+import collection.ElementFilter;
+import collection.NearestRequest;
+import collection.Page;
+import collection.PageRequest;
+import collection.Position;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+// Binary encoding of PacketMessage.
+// Layout: magic (2 bytes), version (1 byte), flags (1 byte), head (1 byte), creation date (8 bytes),
+// optional login, password hash, request id and session token, tagged body. New heads and body tags must only be appended.
+public class PacketCodec {
+    public static final short MAGIC = 0x4C37;
+    public static final byte VERSION = 1;
+
+    private static final int FLAG_REQUEST = 1;
+    private static final int FLAG_LOGIN = 1 << 1;
+    private static final int FLAG_PASSWORD = 1 << 2;
+    private static final int FLAG_REQUEST_ID = 1 << 3;
+    private static final int FLAG_SESSION_TOKEN = 1 << 4;
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_STRING = 1;
+    private static final byte TAG_BOOLEAN = 2;
+    private static final byte TAG_ELEMENT = 3;
+    private static final byte TAG_INFO = 4;
+    private static final byte TAG_ELEMENT_LIST = 5;
+    private static final byte TAG_HEAD = 6;
+    private static final byte TAG_INTEGER = 7;
+    private static final byte TAG_LONG = 8;
+    private static final byte TAG_PAGE_REQUEST = 9;
+    private static final byte TAG_PAGE = 10;
+    private static final byte TAG_DELTA = 11;
+    private static final byte TAG_AREA = 12;
+    private static final byte TAG_NEAREST_REQUEST = 13;
+    private static final byte TAG_FILTER = 14;
+
+    private static final PacketMessage.Head[] HEADS = PacketMessage.Head.values();
+    private static final ElementFilter.Kind[] FILTER_KINDS = ElementFilter.Kind.values();
+    // Deeper filters are rejected before they could exhaust the stack
+    private static final int MAX_FILTER_DEPTH = 16;
+
+    public static boolean isBinary(ByteBuffer buffer) {
+        return buffer.remaining() >= 2 && buffer.getShort(buffer.position()) == MAGIC;
+    }
+
+    public static void encode(PacketMessage message, ByteBuffer buffer) {
+        int flags = 0;
+        if (message.isRequest()) flags |= FLAG_REQUEST;
+        if (message.getLogin() != null) flags |= FLAG_LOGIN;
+        if (message.getPasswordHash() != null) flags |= FLAG_PASSWORD;
+        if (message.getRequestId() != 0) flags |= FLAG_REQUEST_ID;
+        if (message.getSessionToken() != null) flags |= FLAG_SESSION_TOKEN;
+
+        buffer.putShort(MAGIC);
+        buffer.put(VERSION);
+        buffer.put((byte) flags);
+        buffer.put((byte) message.getHead().ordinal());
+        buffer.putLong(message.getCreationDate().getTime());
+        if (message.getLogin() != null) putString(buffer, message.getLogin());
+        if (message.getPasswordHash() != null) putString(buffer, message.getPasswordHash());
+        if (message.getRequestId() != 0) buffer.putLong(message.getRequestId());
+        if (message.getSessionToken() != null) putString(buffer, message.getSessionToken());
+        putBody(buffer, message.getBody());
+    }
+
+    public static PacketMessage decode(ByteBuffer buffer) throws MalformedPacketException {
+        try {
+            if (buffer.getShort() != MAGIC) {
+                throw new MalformedPacketException("Not a binary packet");
+            }
+            byte version = buffer.get();
+            if (version != VERSION) {
+                throw new MalformedPacketException("Unsupported packet version " + version);
+            }
+            int flags = buffer.get();
+            PacketMessage.Head head = getHead(buffer);
+            Date creationDate = new Date(buffer.getLong());
+            String login = (flags & FLAG_LOGIN) != 0 ? getString(buffer) : null;
+            String passwordHash = (flags & FLAG_PASSWORD) != 0 ? getString(buffer) : null;
+            long requestId = (flags & FLAG_REQUEST_ID) != 0 ? buffer.getLong() : 0;
+            String sessionToken = (flags & FLAG_SESSION_TOKEN) != 0 ? getString(buffer) : null;
+            Object body = getBody(buffer);
+
+            PacketMessage message = new PacketMessage((flags & FLAG_REQUEST) != 0, head, body, login, passwordHash);
+            message.setCreationDate(creationDate);
+            message.setRequestId(requestId);
+            message.setSessionToken(sessionToken);
+            return message;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new MalformedPacketException("Truncated or corrupted packet", e);
+        }
+    }
+
+    private static void putBody(ByteBuffer buffer, Object body) {
+        if (body == null) {
+            buffer.put(TAG_NULL);
+        } else if (body instanceof String) {
+            buffer.put(TAG_STRING);
+            putString(buffer, (String) body);
+        } else if (body instanceof Boolean) {
+            buffer.put(TAG_BOOLEAN);
+            buffer.put((byte) ((Boolean) body ? 1 : 0));
+        } else if (body instanceof CollectionElement) {
+            buffer.put(TAG_ELEMENT);
+            putElement(buffer, (CollectionElement) body);
+        } else if (body instanceof CollectionInfo) {
+            CollectionInfo info = (CollectionInfo) body;
+            buffer.put(TAG_INFO);
+            putDateTime(buffer, info.getCreationDate());
+            putVarInt(buffer, info.getElementCount());
+            putDateTime(buffer, info.getLastModified());
+            // Statistics are sent only for collections that have elements
+            if (info.getElementCount() > 0) {
+                buffer.putDouble(info.getMinSize());
+                buffer.putDouble(info.getMaxSize());
+                buffer.putDouble(info.getMeanSize());
+                buffer.putDouble(info.getMinX());
+                buffer.putDouble(info.getMinY());
+                buffer.putDouble(info.getMaxX());
+                buffer.putDouble(info.getMaxY());
+            }
+        } else if (body instanceof List) {
+            List<?> list = (List<?>) body;
+            buffer.put(TAG_ELEMENT_LIST);
+            putElementList(buffer, list);
+        } else if (body instanceof PacketMessage.Head) {
+            buffer.put(TAG_HEAD);
+            buffer.put((byte) ((PacketMessage.Head) body).ordinal());
+        } else if (body instanceof Integer) {
+            buffer.put(TAG_INTEGER);
+            buffer.putInt((Integer) body);
+        } else if (body instanceof Long) {
+            buffer.put(TAG_LONG);
+            buffer.putLong((Long) body);
+        } else if (body instanceof PageRequest) {
+            PageRequest request = (PageRequest) body;
+            buffer.put(TAG_PAGE_REQUEST);
+            putCursor(buffer, request.getAfter());
+            putVarInt(buffer, request.getLimit());
+        } else if (body instanceof Page) {
+            Page page = (Page) body;
+            buffer.put(TAG_PAGE);
+            putElementList(buffer, page.getElements());
+            putCursor(buffer, page.getNext());
+        } else if (body instanceof Delta) {
+            Delta delta = (Delta) body;
+            buffer.put(TAG_DELTA);
+            buffer.putLong(delta.getRevision());
+            buffer.put((byte) (delta.isSnapshot() ? 1 : 0));
+            // The client keeps these elements, so unlike other lists they go with their ids
+            putVarInt(buffer, delta.getAdded().size());
+            for (CollectionElement element : delta.getAdded()) {
+                buffer.putLong(element.getId());
+                putElement(buffer, element);
+            }
+            putVarInt(buffer, delta.getRemoved().length);
+            for (long id : delta.getRemoved()) {
+                buffer.putLong(id);
+            }
+        } else if (body instanceof Area) {
+            Area area = (Area) body;
+            buffer.put(TAG_AREA);
+            buffer.putDouble(area.getMinX());
+            buffer.putDouble(area.getMinY());
+            buffer.putDouble(area.getMaxX());
+            buffer.putDouble(area.getMaxY());
+        } else if (body instanceof NearestRequest) {
+            NearestRequest request = (NearestRequest) body;
+            buffer.put(TAG_NEAREST_REQUEST);
+            buffer.putDouble(request.getPosition().getX());
+            buffer.putDouble(request.getPosition().getY());
+            putVarInt(buffer, request.getCount());
+        } else if (body instanceof ElementFilter) {
+            buffer.put(TAG_FILTER);
+            putFilter(buffer, (ElementFilter) body);
+        } else {
+            throw new IllegalArgumentException("Unsupported body type " + body.getClass().getName());
+        }
+    }
+
+    private static Object getBody(ByteBuffer buffer) throws MalformedPacketException {
+        byte tag = buffer.get();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_STRING:
+                return getString(buffer);
+            case TAG_BOOLEAN:
+                return buffer.get() != 0;
+            case TAG_ELEMENT:
+                return getElement(buffer);
+            case TAG_INFO:
+                return getInfo(buffer);
+            case TAG_ELEMENT_LIST:
+                return getElementList(buffer);
+            case TAG_HEAD:
+                return getHead(buffer);
+            case TAG_INTEGER:
+                return buffer.getInt();
+            case TAG_LONG:
+                return buffer.getLong();
+            case TAG_PAGE_REQUEST:
+                Cursor after = getCursor(buffer);
+                return new PageRequest(after, getVarInt(buffer));
+            case TAG_PAGE:
+                List<CollectionElement> elements = getElementList(buffer);
+                return new Page(elements, getCursor(buffer));
+            case TAG_DELTA:
+                return getDelta(buffer);
+            case TAG_AREA:
+                return new Area(buffer.getDouble(), buffer.getDouble(), buffer.getDouble(), buffer.getDouble());
+            case TAG_NEAREST_REQUEST:
+                Position position = new Position(buffer.getDouble(), buffer.getDouble());
+                return new NearestRequest(position, getVarInt(buffer));
+            case TAG_FILTER:
+                return getFilter(buffer, 0);
+            default:
+                throw new MalformedPacketException("Unknown body tag " + tag);
+        }
+    }
+
+    private static void putElement(ByteBuffer buffer, CollectionElement element) {
+        putString(buffer, element.getName());
+        buffer.putDouble(element.getSize());
+        buffer.putDouble(element.getPosition().getX());
+        buffer.putDouble(element.getPosition().getY());
+        putDateTime(buffer, element.getCreationDate());
+    }
+
+    private static CollectionElement getElement(ByteBuffer buffer) throws MalformedPacketException {
+        String name = getString(buffer);
+        double size = buffer.getDouble();
+        double x = buffer.getDouble();
+        double y = buffer.getDouble();
+        LocalDateTime creationDate = getDateTime(buffer);
+        CollectionElement element = new CollectionElement(name, size, x, y);
+        return creationDate == null ? element : element.withCreationDate(creationDate);
+    }
+
+    private static CollectionInfo getInfo(ByteBuffer buffer) throws MalformedPacketException {
+        LocalDateTime creationDate = getDateTime(buffer);
+        int elementCount = getVarInt(buffer);
+        LocalDateTime lastModified = getDateTime(buffer);
+        if (elementCount == 0) {
+            return new CollectionInfo(creationDate, lastModified, 0, 0, 0, 0, 0, 0, 0, 0);
+        }
+        return new CollectionInfo(creationDate, lastModified, elementCount,
+                buffer.getDouble(), buffer.getDouble(), buffer.getDouble(),
+                buffer.getDouble(), buffer.getDouble(), buffer.getDouble(), buffer.getDouble());
+    }
+
+    private static void putElementList(ByteBuffer buffer, List<?> list) {
+        putVarInt(buffer, list.size());
+        for (Object element : list) {
+            putElement(buffer, (CollectionElement) element);
+        }
+    }
+
+    private static List<CollectionElement> getElementList(ByteBuffer buffer) throws MalformedPacketException {
+        int size = getVarInt(buffer);
+        // Every element takes at least 26 bytes, so a forged size cannot allocate much
+        List<CollectionElement> list = new ArrayList<>(Math.min(size, buffer.remaining() / 26));
+        for (int i = 0; i < size; i++) {
+            list.add(getElement(buffer));
+        }
+        return list;
+    }
+
+    private static Delta getDelta(ByteBuffer buffer) throws MalformedPacketException {
+        long revision = buffer.getLong();
+        boolean snapshot = buffer.get() != 0;
+        int addedCount = getVarInt(buffer);
+        List<CollectionElement> added = new ArrayList<>(Math.min(addedCount, buffer.remaining() / 34));
+        for (int i = 0; i < addedCount; i++) {
+            long id = buffer.getLong();
+            added.add(getElement(buffer).withId(id));
+        }
+        int removedCount = getVarInt(buffer);
+        if (removedCount < 0 || removedCount > buffer.remaining() / 8) {
+            throw new MalformedPacketException("Removed ids are longer than the packet");
+        }
+        long[] removed = new long[removedCount];
+        for (int i = 0; i < removedCount; i++) {
+            removed[i] = buffer.getLong();
+        }
+        return new Delta(revision, snapshot, added, removed);
+    }
+
+    private static void putFilter(ByteBuffer buffer, ElementFilter filter) {
+        buffer.put((byte) filter.getKind().ordinal());
+        switch (filter.getKind()) {
+            case NAME:
+            case NAME_PREFIX:
+                putString(buffer, filter.getName());
+                break;
+            case SIZE:
+                buffer.putDouble(filter.getMinSize());
+                buffer.putDouble(filter.getMaxSize());
+                break;
+            case POSITION:
+                buffer.putDouble(filter.getArea().getMinX());
+                buffer.putDouble(filter.getArea().getMinY());
+                buffer.putDouble(filter.getArea().getMaxX());
+                buffer.putDouble(filter.getArea().getMaxY());
+                break;
+            case CREATED:
+                putDateTime(buffer, filter.getCreatedFrom());
+                putDateTime(buffer, filter.getCreatedTo());
+                break;
+            default:
+                putVarInt(buffer, filter.getOperands().size());
+                for (ElementFilter operand : filter.getOperands()) {
+                    putFilter(buffer, operand);
+                }
+        }
+    }
+
+    private static ElementFilter getFilter(ByteBuffer buffer, int depth) throws MalformedPacketException {
+        if (depth > MAX_FILTER_DEPTH) {
+            throw new MalformedPacketException("Filter is nested too deep");
+        }
+        int ordinal = buffer.get() & 0xFF;
+        if (ordinal >= FILTER_KINDS.length) {
+            throw new MalformedPacketException("Unknown filter " + ordinal);
+        }
+        switch (FILTER_KINDS[ordinal]) {
+            case NAME:
+                return ElementFilter.nameEquals(getString(buffer));
+            case NAME_PREFIX:
+                return ElementFilter.nameStartsWith(getString(buffer));
+            case SIZE:
+                return ElementFilter.sizeBetween(buffer.getDouble(), buffer.getDouble());
+            case POSITION:
+                return ElementFilter.within(
+                        new Area(buffer.getDouble(), buffer.getDouble(), buffer.getDouble(), buffer.getDouble()));
+            case CREATED:
+                LocalDateTime from = getDateTime(buffer);
+                return ElementFilter.createdBetween(from, getDateTime(buffer));
+            default:
+                int count = getVarInt(buffer);
+                // Every operand takes at least one byte
+                if (count < 0 || count > buffer.remaining()) {
+                    throw new MalformedPacketException("Filter operands are longer than the packet");
+                }
+                List<ElementFilter> operands = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    operands.add(getFilter(buffer, depth + 1));
+                }
+                return FILTER_KINDS[ordinal] == ElementFilter.Kind.AND
+                        ? ElementFilter.and(operands)
+                        : ElementFilter.or(operands);
+        }
+    }
+
+    private static void putCursor(ByteBuffer buffer, Cursor cursor) {
+        if (cursor == null) {
+            buffer.put((byte) 0);
+            return;
+        }
+        buffer.put((byte) 1);
+        buffer.putDouble(cursor.getSize());
+        buffer.putLong(cursor.getId());
+    }
+
+    private static Cursor getCursor(ByteBuffer buffer) {
+        if (buffer.get() == 0) {
+            return null;
+        }
+        double size = buffer.getDouble();
+        return new Cursor(size, buffer.getLong());
+    }
+
+    private static PacketMessage.Head getHead(ByteBuffer buffer) throws MalformedPacketException {
+        int ordinal = buffer.get() & 0xFF;
+        if (ordinal >= HEADS.length) {
+            throw new MalformedPacketException("Unknown head " + ordinal);
+        }
+        return HEADS[ordinal];
+    }
+
+    private static void putDateTime(ByteBuffer buffer, LocalDateTime dateTime) {
+        if (dateTime == null) {
+            buffer.put((byte) 0);
+            return;
+        }
+        buffer.put((byte) 1);
+        buffer.putLong(dateTime.toEpochSecond(ZoneOffset.UTC));
+        buffer.putInt(dateTime.getNano());
+    }
+
+    private static LocalDateTime getDateTime(ByteBuffer buffer) {
+        if (buffer.get() == 0) {
+            return null;
+        }
+        long epochSecond = buffer.getLong();
+        int nano = buffer.getInt();
+        return LocalDateTime.ofEpochSecond(epochSecond, nano, ZoneOffset.UTC);
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        if (value == null) {
+            putVarInt(buffer, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        putVarInt(buffer, bytes.length + 1);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) throws MalformedPacketException {
+        int length = getVarInt(buffer) - 1;
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new MalformedPacketException("String is longer than the packet");
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void putVarInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static int getVarInt(ByteBuffer buffer) throws MalformedPacketException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new MalformedPacketException("Variable length integer is too long");
+    }
+}
@@ -5,6 +5,9 @@ import java.util.Date;
 import java.util.Objects;
 
 public class PacketMessage implements Serializable {
+    // Fixed to the value of the first release so that clients using Java serialization stay compatible
+    private static final long serialVersionUID = 3561457459306016397L;
+
     public static enum Head implements Serializable {
         INFO,
         REMOVE_FIRST,
@@ -18,6 +21,13 @@ public class PacketMessage implements Serializable {
         STOP,
         REGISTER,
         LOGIN,
+        BUSY,
+        LOGOUT,
+        SESSION_EXPIRED,
+        CHANGES,
+        WITHIN,
+        NEAREST,
+        FILTER,
     }
 
     private boolean isRequest;
@@ -26,6 +36,10 @@ public class PacketMessage implements Serializable {
     private Date creationDate = new Date();
     private String login;
     private String passwordHash;
+    // Zero for clients that do not match responses to requests
+    private long requestId;
+    // Issued in the response to LOGIN and sent instead of login and password afterwards
+    private String sessionToken;
 
     public PacketMessage(boolean isRequest, Head head, Object body) {
         this.isRequest = isRequest;
@@ -43,8 +57,8 @@ public class PacketMessage implements Serializable {
 
     @Override
     public String toString() {
-        return String.format("{ isRequest: %b; head: %s; body: %s; creationDate: %s }",
-                isRequest, head, body, creationDate);
+        return String.format("{ isRequest: %b; head: %s; requestId: %d; body: %s; creationDate: %s }",
+                isRequest, head, requestId, body, creationDate);
     }
 
     @Override
@@ -72,7 +86,27 @@ public class PacketMessage implements Serializable {
         return passwordHash;
     }
 
+    public long getRequestId() {
+        return requestId;
+    }
+
+    public void setRequestId(long requestId) {
+        this.requestId = requestId;
+    }
+
+    public String getSessionToken() {
+        return sessionToken;
+    }
+
+    public void setSessionToken(String sessionToken) {
+        this.sessionToken = sessionToken;
+    }
+
     public Date getCreationDate() {
         return creationDate;
     }
+
+    void setCreationDate(Date creationDate) {
+        this.creationDate = creationDate;
+    }
 }
@@ -0,0 +1,51 @@
+package net;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+
+public enum WireFormat {
+    // Java serialization, understood by every client
+    SERIALIZED {
+        @Override
+        public void encode(PacketMessage message, ByteBuffer buffer) throws IOException {
+            try (ObjectOutputStream oo = new ObjectOutputStream(new ByteBufferOutputStream(buffer))) {
+                oo.writeObject(message);
+            }
+        }
+
+        @Override
+        public PacketMessage decode(ByteBuffer buffer) throws IOException {
+            try (ObjectInputStream oi = new ObjectInputStream(new ByteBufferInputStream(buffer))) {
+                Object obj = oi.readObject();
+                if (obj instanceof PacketMessage) {
+                    return (PacketMessage) obj;
+                }
+                throw new MalformedPacketException("Expected PacketMessage, got " + obj);
+            } catch (ClassNotFoundException e) {
+                throw new MalformedPacketException("Unknown class in packet", e);
+            }
+        }
+    },
+    BINARY {
+        @Override
+        public void encode(PacketMessage message, ByteBuffer buffer) throws IOException {
+            PacketCodec.encode(message, buffer);
+        }
+
+        @Override
+        public PacketMessage decode(ByteBuffer buffer) throws IOException {
+            return PacketCodec.decode(buffer);
+        }
+    };
+
+    // Throws BufferOverflowException if the message does not fit into the buffer
+    public abstract void encode(PacketMessage message, ByteBuffer buffer) throws IOException;
+
+    public abstract PacketMessage decode(ByteBuffer buffer) throws IOException;
+
+    public static WireFormat detect(ByteBuffer buffer) {
+        return PacketCodec.isBinary(buffer) ? BINARY : SERIALIZED;
+    }
+}